@@ -0,0 +1,104 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Assembles a generated label-heavy source and reports the time, the bytes allocated and the exceptions thrown per
+ * build. Ordinary lines shouldn't throw anything, so the last figure should be 0.
+ *
+ * <pre>
+ * asm8$ javac -d bench/out src/Asm8.java bench/LabelBench.java
+ * asm8$ java -cp bench/out LabelBench [blocks] [builds]
+ * </pre>
+ */
+public class LabelBench {
+
+    public static void main(String[] args) throws Exception {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int builds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Path dir = Files.createTempDirectory("labelbench");
+        Path source = dir.resolve("bench.asm");
+        Path output = dir.resolve("bench.bin");
+        Files.writeString(source, source(blocks));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < builds; i++) {//warm up
+            build(source, output);
+        }
+
+        long[] times = new long[builds];
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        Path events = Files.createTempFile("labelbench", ".jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.JavaExceptionThrow");
+            recording.start();
+
+            for (int i = 0; i < builds; i++) {
+                long start = System.nanoTime();
+                build(source, output);
+                times[i] = System.nanoTime() - start;
+            }
+
+            recording.stop();
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            recording.dump(events);
+        }
+
+        long exceptions = 0;
+
+        for (RecordedEvent event : RecordingFile.readAllEvents(events)) {
+            if (event.getThread() != null && event.getThread().getJavaThreadId() == thread) {
+                exceptions++;
+            }
+        }
+
+        Files.delete(events);
+        Files.delete(source);
+        Files.deleteIfExists(output);
+        Files.delete(dir);
+        Arrays.sort(times);
+        System.out.printf("%d lines, %d builds\n", blocks * 14 + 2, builds);
+        System.out.printf("median %.2f ms, best %.2f ms\n", times[builds / 2] / 1e6, times[0] / 1e6);
+        System.out.printf("%.1f KB allocated per build\n", allocated / 1024.0 / builds);
+        System.out.printf("%.1f exceptions thrown per build\n", (double) exceptions / builds);
+    }
+
+    private static void build(Path source, Path output) {
+        Asm8 asm8 = new Asm8();
+        asm8.setVerbose(false);
+        asm8.setInputFileName(source.toString());
+        asm8.setOutputFileName(output.toString());
+        asm8.compile();
+    }
+
+    // Global and local labels, forward and backward references, nameless labels and a false IF block in every block.
+    private static String source(int blocks) {
+        StringBuilder source = new StringBuilder("    org $0200\n");
+
+        for (int i = 0; i < blocks; i++) {
+            source.append("value").append(i).append(" = ").append(i & 0x7F).append('\n')
+                .append("block").append(i).append(":\n")
+                .append("@loop: lda table").append(i).append(",x\n")
+                .append("    sta value").append(i).append("\n")
+                .append("    dex\n")
+                .append("    bne @loop\n")
+                .append("    beq +\n")
+                .append("    if value").append(i).append(" > $ff\n")
+                .append("    jmp block").append(i).append("\n")
+                .append("    endif\n")
+                .append("+   ldy #0\n")
+                .append("-   dey\n")
+                .append("    bne -\n")
+                .append("table").append(i).append(": .db block").append(i).append(" & $ff, ").append(i & 0xFF).append('\n');
+        }
+
+        return source.append("    rts\n").toString();
+    }
+}
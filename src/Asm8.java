@@ -1,22 +1,64 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.function.BiConsumer;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Collectors;
 
 import static java.nio.file.Files.deleteIfExists;
 
@@ -33,11 +75,14 @@ public class Asm8 {
     private static final int IFNESTS = 32;//max nested IF levels
     private static final int DEFAULTFILLER = 0; //default fill value
     private static final int LOCALCHAR = '@';
-    private static final Pattern whiteSpaceRegex = Pattern.compile("\\s|:");
-    private static final List<Character> whiteSpaceChars = Arrays.asList(' ', '\t', '\r', '\n', ':');
-    private static final List<Character> whiteSpaceChars2 = Arrays.asList(' ', '\t', '\r', '\n', '\"');
-    private static final List<Character> mathChars = Arrays.asList('!', '^', '&', '|', '+', '-', '*', '/', '%', '(', ')', '<', '>', '=', ',');
-    private static final Pattern mathRegex = Pattern.compile("!|^|&|\\||\\+|-|\\*|/|%|\\(|\\)|<|>|=|,");
+    private static final String SOCKETFILE = ".asm8/asm8.sock";//server socket, under the home directory
+    private static final Set<PosixFilePermission> OWNERONLY = PosixFilePermissions.fromString("rwx------");
+    private static final String STDIN = "-";//source file name for standard input
+    private static final int whiteSpaceChars = 1;//' ', '\t', '\r', '\n', ':'
+    private static final int whiteSpaceChars2 = 1 << 1;//' ', '\t', '\r', '\n', '"'
+    private static final int separatorChars = 1 << 2;//white space and ':', ends a word
+    private static final int mathChars = 1 << 3;//operators, ends a word unless it's the first char
+    private static final byte[] charClasses = charClasses();
 
     enum OpType {
         ACC(0, (char) 0, "A"),
@@ -65,6 +110,28 @@ public class Asm8 {
         }
     }
 
+    static class OpMap {
+
+        public OpMap(OpType[] types, byte[] opcodes) {
+            this.types = types;
+            this.opcodes = opcodes;
+        }
+
+        final OpType[] types;//addressing modes, in the order they are tried
+        final byte[] opcodes;//indexed by addressing mode ordinal
+    }
+
+    static class Operand {
+
+        boolean evaluated;
+        boolean matched;
+        int value;
+        int dependant;
+        boolean needAnotherPass;
+        Asm8Exception error;
+        Cursor rest = new Cursor();
+    }
+
     enum Operator {
         NOOP(Precedence.WHOLEEXP),
         EQUAL(Precedence.EQCOMPARE),
@@ -123,550 +190,2602 @@ public class Asm8 {
         int scope = 0;
     }
 
-    private final BiConsumer<Label, StringBuilder> directiveNothing = this::nothing;
-    private final BiConsumer<Label, StringBuilder> directiveIf = this::_if;
-    private final BiConsumer<Label, StringBuilder> directiveElseIf = this::elseif;
-    private final BiConsumer<Label, StringBuilder> directiveElse = this::_else;
-    private final BiConsumer<Label, StringBuilder> directiveEndIf = this::endif;
-    private final BiConsumer<Label, StringBuilder> directiveIfDef = this::ifdef;
-    private final BiConsumer<Label, StringBuilder> directiveIfNDef = this::ifndef;
-    private final BiConsumer<Label, StringBuilder> directiveEqual = this::equal;
-    private final BiConsumer<Label, StringBuilder> directiveEqu = this::equ;
-    private final BiConsumer<Label, StringBuilder> directiveOrg = this::org;
-    private final BiConsumer<Label, StringBuilder> directiveBase = this::base;
-    private final BiConsumer<Label, StringBuilder> directivePad = this::pad;
-    private final BiConsumer<Label, StringBuilder> directiveInclude = this::include;
-    private final BiConsumer<Label, StringBuilder> directiveIncBin = this::incbin;
-    private final BiConsumer<Label, StringBuilder> directiveHex = this::hex;
-    private final BiConsumer<Label, StringBuilder> directiveDw = this::dw;
-    private final BiConsumer<Label, StringBuilder> directiveDb = this::db;
-    private final BiConsumer<Label, StringBuilder> directiveDsw = this::dsw;
-    private final BiConsumer<Label, StringBuilder> directiveDsb = this::dsb;
-    private final BiConsumer<Label, StringBuilder> directiveAlign = this::align;
-    private final BiConsumer<Label, StringBuilder> directiveMacro = this::macro;
-    private final BiConsumer<Label, StringBuilder> directiveRept = this::rept;
-    private final BiConsumer<Label, StringBuilder> directiveEndM = this::endm;
-    private final BiConsumer<Label, StringBuilder> directiveEndR = this::endr;
-    private final BiConsumer<Label, StringBuilder> directiveEnum = this::_enum;
-    private final BiConsumer<Label, StringBuilder> directiveEndE = this::ende;
-    private final BiConsumer<Label, StringBuilder> directiveFillValue = this::fillval;
-    private final BiConsumer<Label, StringBuilder> directiveDl = this::dl;
-    private final BiConsumer<Label, StringBuilder> directiveDh = this::dh;
-    private final BiConsumer<Label, StringBuilder> directiveError = this::makeError;
+    static class SourceFile {
 
-    private int oldPass = 0;
-    private int pass = 0;
-    private int scope = 0;
-    private int nextScope;
-    private boolean lastChance = false;
-    private boolean needAnotherPass = false;
-    private boolean[] ifDone = new boolean[IFNESTS];
-    private boolean[] skipLine = new boolean[IFNESTS];
-    private int defaultFiller;
-    private final Map<String, List<Label>> labelMap = new HashMap<>();
-    private Label firstLabel = new Label("$", 0, Boolean.TRUE, Label.Type.VALUE);
-    private Label lastLabel;
-    private Label labelHere;
-    private int nestedIncludes = 0;
-    private int ifLevel = 0;
-    private int reptCount = 0;
-    private Object makeMacro = null;
-    private boolean noOutput = false;
-    private int insideMacro = 0;
-    private boolean verboseListing = false;
-    private String listFileName;
-    private String inputFileName;
-    private String outputFileName;
-    private OutputStream outputStream;
-    private boolean verbose = true;
-    private int dependant;
-    private int enumSaveAddr;
+        public SourceFile(long modified, List<String> lines) {
+            this(modified, lines, true);
+        }
 
-    public void setVerboseListing(boolean verboseListing) {
-        this.verboseListing = verboseListing;
+        public SourceFile(long modified, List<String> lines, boolean keepStatements) {
+            this.modified = modified;
+            this.lines = lines;
+            this.statements = keepStatements ? new Statement[lines.size()] : null;
+        }
+
+        final long modified;
+        final List<String> lines;
+        final Statement[] statements;//parsed lines for the next passes, or null to parse them every time
+        int[] skipTo;//next line that may matter inside a false IF block, built on demand
+        String[] skipLabels;//label of a line that matters only if that label is an EQU
     }
 
-    public void setListFileName(String listFileName) {
-        this.listFileName = listFileName;
+    // Only the offset of each line stays on the heap.
+    static class SpilledLines extends AbstractList<String> {
+
+        private SpilledLines(ByteBuffer text, int[] starts, int size) {
+            this.text = text;
+            this.starts = starts;
+            this.size = size;
+        }
+
+        private final ByteBuffer text;
+        private final int[] starts;//of each line, then the end of the text
+        private final int size;
+
+        static SpilledLines spill(Reader reader) throws IOException {
+            Path file = Files.createTempFile("asm8", ".asm");
+
+            try {
+                BufferedReader lines = new BufferedReader(reader);
+                int[] starts = new int[INITLISTSIZE];
+                int size = 0;
+                long length = 0;
+
+                try (OutputStream spill = new BufferedOutputStream(Files.newOutputStream(file), BUFFSIZE)) {
+                    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+
+                        if (size + 1 == starts.length) {
+                            starts = Arrays.copyOf(starts, starts.length * 2);
+                        }
+
+                        starts[size++] = (int) length;
+                        spill.write(bytes);
+                        spill.write('\n');
+                        length += bytes.length + 1;
+
+                        if (length > Integer.MAX_VALUE) {
+                            throw new IOException("Source too large.");
+                        }
+                    }
+                }
+
+                starts[size] = (int) length;
+
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    return new SpilledLines(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), starts, size);
+                }
+            } finally {
+                try {
+                    Files.delete(file);//the mapping outlives the file where the system allows it
+                } catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+
+        @Override
+        public String get(int index) {
+            Objects.checkIndex(index, size);
+            byte[] line = new byte[starts[index + 1] - starts[index] - 1];
+            text.get(starts[index], line);
+
+            return new String(line, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
     }
 
-    public void setInputFileName(String inputFileName) {
-        this.inputFileName = inputFileName;
+    static class MappedFile {
+
+        public MappedFile(long modified, ByteBuffer contents) {
+            this.modified = modified;
+            this.contents = contents;
+        }
+
+        final long modified;
+        final ByteBuffer contents;
     }
 
-    public void setOutputFileName(String outputFileName) {
-        this.outputFileName = outputFileName;
+    static class Caches {
+
+        final Map<String, SourceFile> sources = new ConcurrentHashMap<>();
+        final Map<String, MappedFile> binaries = new ConcurrentHashMap<>();
     }
 
-    public void setVerbose(boolean verbose) {
-        this.verbose = verbose;
+    // Frames are a stream number (1 out, 2 err), a length and the bytes.
+    static class Frames extends OutputStream {
+
+        public Frames(DataOutputStream data, int stream) {
+            this.data = data;
+            this.stream = stream;
+        }
+
+        final DataOutputStream data;
+        final int stream;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (data) {
+                data.writeByte(stream);
+                data.writeInt(len);
+                data.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (data) {
+                data.flush();
+            }
+        }
     }
 
-    public static void main(String[] args) {
-        if (args.length < 1) {
-            showHelp();
-            System.exit(1);
+    static class Statement {
+
+        public Statement(String label, Label directive, String operand, String line, String comment) {
+            this.label = label;
+            this.directive = directive;
+            this.operand = operand;
+            this.line = line;
+            this.comment = comment;
         }
 
-        Asm8 asm8 = new Asm8();
-        asm8.initLabels();
+        final String label;
+        final Label directive;
+        final String operand;
+        final String line;
+        final String comment;
+    }
 
-        int notOption = 0;
+    static class Snapshot {
 
-        for (int i = 0; i < args.length; i++) {
-            if (args[i].startsWith("-") || args[i].startsWith("/")) {
-                switch (args[i].charAt(1)) {
-                    case 'h':
-                    case '?':
-                        showHelp();
-                        System.exit(0);
-                    case 'L':
-                        asm8.verboseListing = true;
-                    case 'l':
-                        asm8.listFileName = "";
-                        break;
-                    case 'd':
-                        System.err.println("Error: option not implemented yet: " + args[i]);
-                        System.exit(0);
-                        break;
-                    case 'q':
-                        asm8.verbose = false;
-                        break;
-                    default:
-                        System.err.println("Error: unknown option: " + args[i]);
-                        System.exit(0);
+        final List<Label> labels = new ArrayList<>();
+        final List<String> assumed = new ArrayList<>();//names the file tested while they were undefined
+    }
+
+    static class Guess {
+
+        public Guess(String name, int scope, int index, int value) {
+            this.name = name;
+            this.scope = scope;
+            this.index = index;
+            this.value = value;
+        }
+
+        final String name;
+        final int scope;
+        final int index;//of a global '+' label among the ones of its name, or -1
+        final int value;
+    }
+
+    static class Compiled {
+
+        public Compiled(String prefix, boolean exact, Expr expr, int end) {
+            this.prefix = prefix;
+            this.exact = exact;
+            this.expr = expr;
+            this.end = end;
+        }
+
+        final String prefix;
+        final boolean exact;
+        final Expr expr;
+        final int end;
+
+        boolean matches(CharSequence text) {
+            if (exact ? text.length() != prefix.length() : text.length() < prefix.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < prefix.length(); i++) {
+                if (text.charAt(i) != prefix.charAt(i)) {
+                    return false;
                 }
+            }
+
+            return true;
+        }
+    }
+
+    // Copies share the char array until one of them is written.
+    static class Cursor implements CharSequence {
+
+        public Cursor() {
+            this.buf = new char[16];
+        }
+
+        public Cursor(CharSequence src) {
+            if (src instanceof Cursor) {
+                Cursor cursor = (Cursor) src;
+                this.buf = cursor.buf;
+                this.pos = cursor.pos;
+                this.end = cursor.end;
+                this.shared = cursor.shared = true;
             } else {
-                if (notOption == 0) {
-                    asm8.inputFileName = args[i];
-                } else if (notOption == 1) {
-                    asm8.outputFileName = args[i];
-                } else if (notOption == 2) {
-                    asm8.listFileName = args[i];
-                } else {
-                    System.err.println("Error: unused argument: " + args[i]);
-                    System.exit(0);
+                this.buf = new char[Math.max(16, src.length())];
+                append(src);
+            }
+        }
+
+        private char[] buf;
+        private int pos;
+        private int end;
+        private boolean shared;
+
+        @Override
+        public int length() {
+            return end - pos;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - pos) {
+                throw new StringIndexOutOfBoundsException(index);
+            }
+
+            return buf[pos + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return substring(start, end);
+        }
+
+        public String substring(int start) {
+            return substring(start, end - pos);
+        }
+
+        public String substring(int start, int end) {
+            if (start < 0 || start > end || end > this.end - pos) {
+                throw new StringIndexOutOfBoundsException(start);
+            }
+
+            return new String(buf, pos + start, end - start);
+        }
+
+        public int indexOf(String str) {
+            return indexOf(str, 0);
+        }
+
+        public int indexOf(String str, int fromIndex) {
+            for (int i = Math.max(fromIndex, 0); i + str.length() <= end - pos; i++) {
+                if (regionMatches(i, str)) {
+                    return i;
                 }
+            }
 
-                notOption++;
+            return -1;
+        }
+
+        public boolean contentEquals(CharSequence cs) {
+            return cs.length() == end - pos && regionMatches(0, cs);
+        }
+
+        private boolean regionMatches(int offset, CharSequence cs) {
+            for (int i = 0; i < cs.length(); i++) {
+                if (buf[pos + offset + i] != cs.charAt(i)) {
+                    return false;
+                }
             }
+
+            return true;
         }
 
-        if (asm8.inputFileName == null) {
-            System.err.println("Error: No source file specified.");
-            System.exit(0);
+        public Cursor append(char c) {
+            ensureCapacity(1);
+            buf[end++] = c;
+
+            return this;
         }
 
-        if (asm8.outputFileName == null) {
-            asm8.outputFileName = asm8.inputFileName.substring(0, asm8.inputFileName.lastIndexOf('.')).concat(".bin");
+        public Cursor append(CharSequence cs) {
+            return append(cs, 0, cs.length());
         }
 
-        try {
-            deleteIfExists(Paths.get(asm8.outputFileName));
-        } catch (IOException e) {
-            System.err.println("Can't delete old output file");
-            System.exit(0);
+        public Cursor append(CharSequence cs, int start, int end) {
+            if (this.end == pos && start == 0 && cs instanceof Cursor && end == cs.length()) {
+                Cursor cursor = (Cursor) cs;
+                buf = cursor.buf;
+                pos = cursor.pos;
+                this.end = cursor.end;
+                shared = cursor.shared = true;
+
+                return this;
+            }
+
+            ensureCapacity(end - start);
+
+            if (cs instanceof String) {
+                ((String) cs).getChars(start, end, buf, this.end);
+                this.end += end - start;
+            } else {
+                for (int i = start; i < end; i++) {
+                    buf[this.end++] = cs.charAt(i);
+                }
+            }
+
+            return this;
         }
 
-        if (asm8.listFileName != null) {
-            if (asm8.listFileName.isEmpty()) {
-                asm8.listFileName = asm8.inputFileName.substring(0, asm8.inputFileName.lastIndexOf('.')).concat(".lst");
+        public Cursor insert(int offset, char c) {
+            if (offset == 0 && pos > 0 && buf[pos - 1] == c) {
+                pos--;//putting back the char just eaten
+            } else {
+                ensureCapacity(1);
+                System.arraycopy(buf, pos + offset, buf, pos + offset + 1, end - pos - offset);
+                buf[pos + offset] = c;
+                end++;
             }
 
-            try {
-                deleteIfExists(Paths.get(asm8.listFileName));
-            } catch (IOException e) {
-                System.err.println("Can't delete old list file");
-                System.exit(0);
+            return this;
+        }
+
+        public Cursor deleteCharAt(int index) {
+            charAt(index);
+
+            if (index == 0) {
+                pos++;
+            } else if (index < end - pos - 1) {
+                ensureCapacity(0);
+                System.arraycopy(buf, pos + index + 1, buf, pos + index, end - pos - index - 1);
+                end--;
+            } else {
+                end--;
             }
+
+            return this;
         }
 
-        try {
-            asm8.compile();
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
-            System.exit(0);
+        public Cursor delete(int start, int end) {
+            end = Math.min(end, this.end - pos);
+
+            if (start < 0 || start > end) {
+                throw new StringIndexOutOfBoundsException(start);
+            }
+
+            if (start == 0) {
+                pos += end;
+            } else if (start < end) {
+                ensureCapacity(0);
+                System.arraycopy(buf, pos + end, buf, pos + start, this.end - pos - end);
+                this.end -= end - start;
+            }
+
+            return this;
+        }
+
+        public void setLength(int length) {
+            if (length <= end - pos) {
+                end = pos + length;
+            } else {
+                ensureCapacity(length - (end - pos));
+                Arrays.fill(buf, end, pos + length, (char) 0);
+                end = pos + length;
+            }
+        }
+
+        private void ensureCapacity(int more) {
+            int length = end - pos;
+
+            if (shared || length + more > buf.length) {
+                char[] dst = new char[Math.max(16, shared && length + more <= buf.length ? buf.length : (length + more) * 2)];
+                System.arraycopy(buf, pos, dst, 0, length);
+                buf = dst;
+                shared = false;
+            } else if (end + more > buf.length) {
+                System.arraycopy(buf, pos, buf, 0, length);
+            } else {
+                return;
+            }
+
+            pos = 0;
+            end = length;
         }
-    }
 
-    private static void showHelp() {
-        System.out.println();
-        System.out.println("asm8 " + VERSION);
-        System.out.println();
-        System.out.println("Usage:  asm8 [-options] sourcefile [outputfile] [listfile]");
-        System.out.println("    -?          show this help");
-        System.out.println("    -l          create listing");
-        System.out.println("    -L          create verbose listing (expand REPT, MACRO)");
-        System.out.println("    -d<name>    define symbol");
-        System.out.println("    -q          quiet mode (no output unless error)");
-        System.out.println();
-        System.out.println("See README.TXT for more info.");
+        @Override
+        public String toString() {
+            return new String(buf, pos, end - pos);
+        }
     }
 
-    public void compile() {
-        initLabels();
+    // Equal to the String of the same chars, but only meant for Map.get.
+    static class Slice {
 
-        Label currLabel = null;
+        private CharSequence src;
+        private int length;
+        private int hash;
 
-        try {
-            do {
-                pass++;
+        Slice set(CharSequence src, int length) {
+            this.src = src;
+            this.length = length;
+            this.hash = 0;
 
-                if (pass == MAXPASSES || (currLabel != null && currLabel.equals(lastLabel))) {
-                    lastChance = true;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + src.charAt(i);
+            }
 
-                    if (verbose) {
-                        System.out.println("last try..");
-                    }
-                } else if (verbose) {
-                    System.out.printf("pass %s..\n", pass);
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof String) || ((String) obj).length() != length) {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                if (((String) obj).charAt(i) != src.charAt(i)) {
+                    return false;
                 }
+            }
+
+            return true;
+        }
+    }
+
+    // Zero fill runs cost nothing and are left as holes in the file.
+    static class Image {
+
+        static class Segment {
+
+            public Segment(int offset, int fill, int width, int start) {
+                this.offset = offset;
+                this.fill = fill;
+                this.width = width;
+                this.start = start;
+                this.mapped = null;
+            }
+
+            public Segment(int offset, ByteBuffer mapped) {
+                this.offset = offset;
+                this.fill = 0;
+                this.width = 0;
+                this.start = -1;
+                this.mapped = mapped;
+                this.length = mapped.remaining();
+            }
+
+            final int offset;//position in the file
+            final int fill;//little endian fill value
+            final int width;//size of the fill value, or 0 for assembled bytes
+            final int start;//position of the assembled bytes in data
+            final ByteBuffer mapped;//included file contents, copied only when writing the file
+            int length;
+        }
+
+        private final List<Segment> segments = new ArrayList<>();
+        private byte[] data = new byte[BUFFSIZE];
+        private int dataSize;
+        private int size;
+
+        void clear() {
+            segments.clear();
+            dataSize = 0;
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+            if (last == null || last.width > 0 || last.mapped != null) {
+                last = new Segment(size, 0, 0, dataSize);
+                segments.add(last);
+            }
+
+            if (dataSize + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + length));
+            }
+
+            System.arraycopy(bytes, offset, data, dataSize, length);
+            dataSize += length;
+            last.length += length;
+            size += length;
+        }
+
+        void write(ByteBuffer mapped) {
+            segments.add(new Segment(size, mapped));
+            size += mapped.remaining();
+        }
+
+        void fill(int value, int width, int count) {
+            if (count <= 0) {
+                return;
+            }
+
+            value &= width == 1 ? 0xFF : 0xFFFF;
+
+            if (width == 2 && (value & 0xFF) == value >> 8) {
+                value &= 0xFF;
+                width = 1;
+                count *= 2;
+            }
+
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+            if (last == null || last.width != width || last.fill != value) {
+                last = new Segment(size, value, width, -1);
+                segments.add(last);
+            }
+
+            last.length += count * width;
+            size += count * width;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[size];
+
+            for (Segment segment : segments) {
+                if (segment.mapped != null) {
+                    segment.mapped.duplicate().get(bytes, segment.offset, segment.length);
+                } else if (segment.width == 0) {
+                    System.arraycopy(data, segment.start, bytes, segment.offset, segment.length);
+                } else {
+                    for (int i = 0; i < segment.length; i++) {
+                        bytes[segment.offset + i] = (byte) (segment.fill >> (i % segment.width * 8));
+                    }
+                }
+            }
+
+            return bytes;
+        }
+
+        void digest(MessageDigest digest) {
+            byte[] fill = null;
+
+            for (Segment segment : segments) {
+                if (segment.mapped != null) {
+                    digest.update(segment.mapped.duplicate());
+                } else if (segment.width == 0) {
+                    digest.update(data, segment.start, segment.length);
+                } else {
+                    if (fill == null) {
+                        fill = new byte[BUFFSIZE];
+                    }
+
+                    for (int i = 0; i < fill.length; i++) {
+                        fill[i] = (byte) (segment.fill >> (i % segment.width * 8));
+                    }
+
+                    for (int done = 0; done < segment.length; done += fill.length) {
+                        digest.update(fill, 0, Math.min(fill.length, segment.length - done));
+                    }
+                }
+            }
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer fillBuffer = null;
+
+            for (Segment segment : segments) {
+                if (segment.mapped != null) {
+                    write(channel, segment.mapped.duplicate(), segment.offset);
+                } else if (segment.width == 0) {
+                    write(channel, ByteBuffer.wrap(data, segment.start, segment.length), segment.offset);
+                } else if (segment.fill != 0) {
+                    //the limit of the last write doesn't matter to the array
+                    byte[] cached = fillBuffer == null ? null : fillBuffer.array();
+
+                    if (cached == null || cached[0] != (byte) segment.fill || cached[1] != (byte) (segment.fill >> (segment.width - 1) * 8)) {
+                        byte[] fill = new byte[Math.max(2, Math.min(segment.length, BUFFSIZE * 8))];
+
+                        for (int i = 0; i < fill.length; i++) {
+                            fill[i] = (byte) (segment.fill >> (i % segment.width * 8));
+                        }
+
+                        fillBuffer = ByteBuffer.wrap(fill);
+                    }
+
+                    for (int done = 0; done < segment.length; done += fillBuffer.capacity()) {
+                        fillBuffer.clear().limit(Math.min(fillBuffer.capacity(), segment.length - done));
+                        write(channel, fillBuffer, segment.offset + done);
+                    }
+                }
+            }
+
+            if (channel.size() < size) {
+                write(channel, ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        }
+
+        private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    abstract static class Expr {
+
+        abstract int eval(Asm8 asm);
+    }
+
+    static class Constant extends Expr {
+
+        public Constant(int value, boolean folded) {
+            this.value = value;
+            this.folded = folded;
+        }
+
+        final int value;
+        final boolean folded;
+
+        @Override
+        int eval(Asm8 asm) {
+            return folded && asm.dependant != 0 ? 0 : value;
+        }
+    }
+
+    static class ProgramCounter extends Expr {
+
+        @Override
+        int eval(Asm8 asm) {
+            return asm.programCounter();
+        }
+    }
+
+    static class LabelRef extends Expr {
+
+        public LabelRef(String name) {
+            this.name = name;
+        }
+
+        final String name;
+
+        @Override
+        int eval(Asm8 asm) {
+            return asm.labelValue(name, false);
+        }
+    }
+
+    static class NamelessRef extends Expr {
+
+        public NamelessRef(String name, Expr unary, boolean negate) {
+            this.name = name;
+            this.unary = unary;
+            this.negate = negate;
+        }
+
+        final String name;
+        final Expr unary;
+        final boolean negate;
+
+        @Override
+        int eval(Asm8 asm) {
+            int dependant = asm.dependant;
+            boolean needAnotherPass = asm.needAnotherPass;
+            int ret;
+
+            asm.dependant = 0;
+            ret = asm.labelValue(name, true);
+
+            if (asm.dependant == 0 || unary == null) {
+                asm.dependant |= dependant;
+                return ret;
+            }
+
+            asm.dependant = dependant;
+            asm.needAnotherPass = needAnotherPass;
+            ret = unary.eval(asm);
+
+            return negate ? -ret : ret;
+        }
+    }
+
+    static class UnaryExpr extends Expr {
+
+        private UnaryExpr(char op, Expr expr) {
+            this.op = op;
+            this.expr = expr;
+        }
+
+        final char op;
+        final Expr expr;
+
+        static Expr of(char op, Expr expr) {
+            if (expr instanceof Constant && !((Constant) expr).folded) {
+                return new Constant(apply(op, ((Constant) expr).value), false);
+            }
+
+            return new UnaryExpr(op, expr);
+        }
+
+        static int apply(char op, int val) {
+            switch (op) {
+                case '~':
+                    return ~val;
+                case '!':
+                    return val == 0 ? 1 : 0;
+                case '<':
+                    return val & 0xFF;
+                case '>':
+                    return (val >> 8) & 0xFF;
+                default:
+                    return -val;
+            }
+        }
+
+        @Override
+        int eval(Asm8 asm) {
+            return apply(op, expr.eval(asm));
+        }
+    }
+
+    static class BinaryExpr extends Expr {
+
+        private BinaryExpr(Operator op, Expr left, Expr right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        final Operator op;
+        final Expr left;
+        final Expr right;
+
+        // The folded value still reads as 0 while a label is pending, like the operator it replaces.
+        static Expr of(Operator op, Expr left, Expr right) {
+            if (left instanceof Constant && right instanceof Constant) {
+                int val2 = ((Constant) right).value;
+
+                if (val2 != 0 || (op != Operator.DIV && op != Operator.MOD)) {
+                    return new Constant(Asm8.apply(op, ((Constant) left).value, val2), true);
+                }
+            }
+
+            return new BinaryExpr(op, left, right);
+        }
+
+        @Override
+        int eval(Asm8 asm) {
+            int ret = left.eval(asm);
+            int val2 = right.eval(asm);
+
+            return asm.dependant == 0 ? Asm8.apply(op, ret, val2) : 0;
+        }
+    }
+
+    // Older labels of the same name and scope are chained behind the newest one.
+    static class SymbolTable {
+
+        private static final long EMPTY = -1L;
+
+        private String[] names = new String[INITLISTSIZE];
+        private int[] nameSlots = newSlots(INITLISTSIZE * 2);
+        private int nameCount;
+        private Label[] labels = new Label[INITLISTSIZE];
+        private int[] chain = new int[INITLISTSIZE];
+        private long[] keys = newKeys(INITLISTSIZE * 2);
+        private int[] heads = new int[INITLISTSIZE * 2];
+        private int labelCount;
+        private Nameless[] nameless = new Nameless[INITLISTSIZE];
+
+        int find(CharSequence name) {
+            int mask = nameSlots.length - 1;
+
+            for (int i = hash(name) & mask; nameSlots[i] >= 0; i = (i + 1) & mask) {
+                if (contentEquals(names[nameSlots[i]], name)) {
+                    return nameSlots[i];
+                }
+            }
+
+            return -1;
+        }
+
+        Label first(int id, int scope, int pass) {
+            for (int i = head(id, scope); i >= 0; i = chain[i]) {
+                if (labels[i].pass != pass) {
+                    return labels[i];
+                }
+            }
+
+            return null;
+        }
+
+        Label last(int id, int scope, int pass) {
+            Label last = null;
+
+            for (int i = head(id, scope); i >= 0; i = chain[i]) {
+                if (labels[i].pass != pass) {
+                    last = labels[i];
+                }
+            }
+
+            return last;
+        }
+
+        Label forward(int id, int pass) {
+            return id < nameless.length && nameless[id] != null ? nameless[id].forward(pass) : null;
+        }
+
+        List<Label> known() {
+            List<Label> known = new ArrayList<>();
+
+            for (int i = 0; i < labelCount; i++) {
+                Label label = labels[i];
+
+                if (label.line != null && (label.type == Label.Type.LABEL || label.type == Label.Type.VALUE)
+                    && label.name.charAt(0) != '-') {
+                    known.add(label);
+                }
+            }
+
+            return known;
+        }
+
+        int nameless(CharSequence name) {
+            int id = find(name);
+
+            return id >= 0 && id < nameless.length && nameless[id] != null ? nameless[id].size : 0;
+        }
+
+        Label nameless(CharSequence name, int index) {
+            int id = find(name);
+
+            return index < nameless(name) ? nameless[id].labels[index] : null;
+        }
+
+        void forEachNameless(ObjIntConsumer<Label> action) {
+            for (Nameless labels : nameless) {
+                for (int i = 0; labels != null && i < labels.size; i++) {
+                    if (labels.labels[i].line != null) {
+                        action.accept(labels.labels[i], i);
+                    }
+                }
+            }
+        }
+
+        Map<String, Integer> globals() {
+            Map<String, Integer> globals = new LinkedHashMap<>();
+
+            for (int i = 0; i < labelCount; i++) {
+                Label label = labels[i];
+
+                if (label.scope == 0 && label.line != null && (label.type == Label.Type.LABEL || label.type == Label.Type.VALUE)) {
+                    globals.putIfAbsent(label.name, (Integer) label.value);
+                }
+            }
+
+            return globals;
+        }
+
+        void add(Label label) {
+            if (label.scope == 0 && label.name.startsWith("+")) {
+                int id = intern(label.name);
+
+                if (nameless[id] == null) {
+                    nameless[id] = new Nameless();
+                }
+
+                nameless[id].add(label);
+                return;
+            }
+
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+                chain = Arrays.copyOf(chain, labelCount * 2);
+            }
+
+            if (labelCount * 2 >= keys.length) {
+                rehashLabels(keys.length * 2);
+            }
+
+            int id = intern(label.name);
+            long key = key(id, label.scope);
+            int slot = slot(key);
+
+            if (keys[slot] == EMPTY) {
+                keys[slot] = key;
+                chain[labelCount] = -1;
+            } else {
+                chain[labelCount] = heads[slot];
+            }
+
+            heads[slot] = labelCount;
+            labels[labelCount++] = label;
+        }
+
+        private int head(int id, int scope) {
+            int slot = slot(key(id, scope));
+
+            return keys[slot] == EMPTY ? -1 : heads[slot];
+        }
+
+        private int intern(String name) {
+            int id = find(name);
+
+            if (id >= 0) {
+                return id;
+            }
+
+            if (nameCount == names.length) {
+                names = Arrays.copyOf(names, nameCount * 2);
+                nameless = Arrays.copyOf(nameless, nameCount * 2);
+            }
+
+            if (nameCount * 2 >= nameSlots.length) {
+                nameSlots = newSlots(nameSlots.length * 2);
+
+                for (int i = 0; i < nameCount; i++) {
+                    nameSlots[freeNameSlot(names[i])] = i;
+                }
+            }
+
+            names[nameCount] = name;
+            nameSlots[freeNameSlot(name)] = nameCount;
+
+            return nameCount++;
+        }
+
+        private int freeNameSlot(CharSequence name) {
+            int mask = nameSlots.length - 1;
+            int i = hash(name) & mask;
+
+            while (nameSlots[i] >= 0) {
+                i = (i + 1) & mask;
+            }
+
+            return i;
+        }
+
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int i = (int) ((key ^ (key >>> 29)) * 0x9E3779B97F4A7C15L >>> 35) & mask;
+
+            while (keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+
+            return i;
+        }
+
+        private void rehashLabels(int size) {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads;
+
+            keys = newKeys(size);
+            heads = new int[size];
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    heads[slot] = oldHeads[i];
+                }
+            }
+        }
+
+        private static long key(int id, int scope) {
+            return ((long) id << 32) | (scope & 0xFFFFFFFFL);
+        }
+
+        private static int hash(CharSequence name) {
+            int h = 0;
+
+            for (int i = 0; i < name.length(); i++) {
+                h = 31 * h + name.charAt(i);
+            }
+
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean contentEquals(String name, CharSequence other) {
+            if (name.length() != other.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != other.charAt(i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        // Each pass redefines these in the same order, so the ones already defined on it form a prefix.
+        static class Nameless {
+
+            private Label[] labels = new Label[8];
+            private int size;
+            private int cursor;
+            private int cursorPass;
+
+            Label forward(int pass) {
+                if (cursorPass != pass) {
+                    cursorPass = pass;
+                    cursor = 0;
+                }
+
+                while (cursor < size && labels[cursor].pass == pass) {
+                    cursor++;
+                }
+
+                return cursor < size ? labels[cursor] : null;
+            }
+
+            void add(Label label) {
+                if (size == labels.length) {
+                    labels = Arrays.copyOf(labels, size * 2);
+                }
+
+                labels[size++] = label;
+            }
+        }
+
+        private static int[] newSlots(int size) {
+            int[] slots = new int[size];
+            Arrays.fill(slots, -1);
+            return slots;
+        }
+
+        private static long[] newKeys(int size) {
+            long[] keys = new long[size];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+
+    @FunctionalInterface
+    interface Directive {
+
+        void accept(Asm8 asm, Label id, Cursor next);
+    }
+
+    // Lookups go through a perfect hash found when the class loads, so they never allocate.
+    static class ReservedWords {
+
+        private final Label[] table = new Label[1024];
+        private int seed;
+
+        public ReservedWords(List<Label> words) {
+            search:
+            for (seed = 1; ; seed++) {
+                Arrays.fill(table, null);
+
+                for (Label word : words) {
+                    int slot = hash(word.name, seed) & (table.length - 1);
+
+                    if (table[slot] != null) {
+                        continue search;
+                    }
+
+                    table[slot] = word;
+                }
+
+                return;
+            }
+        }
+
+        Label get(CharSequence name) {
+            Label word = table[hash(name, seed) & (table.length - 1)];
+
+            if (word == null || word.name.length() != name.length()) {
+                return null;
+            }
+
+            for (int i = 0; i < name.length(); i++) {
+                if (upper(name.charAt(i)) != word.name.charAt(i)) {
+                    return null;
+                }
+            }
+
+            return word;
+        }
+
+        private static int hash(CharSequence name, int seed) {
+            int h = seed;
+
+            for (int i = 0; i < name.length(); i++) {
+                h = (h ^ upper(name.charAt(i))) * 0x01000193;
+            }
+
+            return h ^ (h >>> 15);
+        }
+
+        private static char upper(char c) {
+            return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+        }
+    }
+
+    private static final Directive directiveOpcode = Asm8::opcode;
+    private static final Directive directiveNothing = Asm8::nothing;
+    private static final Directive directiveIf = Asm8::_if;
+    private static final Directive directiveElseIf = Asm8::elseif;
+    private static final Directive directiveElse = Asm8::_else;
+    private static final Directive directiveEndIf = Asm8::endif;
+    private static final Directive directiveIfDef = Asm8::ifdef;
+    private static final Directive directiveIfNDef = Asm8::ifndef;
+    private static final Directive directiveEqual = Asm8::equal;
+    private static final Directive directiveEqu = Asm8::equ;
+    private static final Directive directiveOrg = Asm8::org;
+    private static final Directive directiveBase = Asm8::base;
+    private static final Directive directivePad = Asm8::pad;
+    private static final Directive directiveInclude = Asm8::include;
+    private static final Directive directiveIncBin = Asm8::incbin;
+    private static final Directive directiveHex = Asm8::hex;
+    private static final Directive directiveDw = Asm8::dw;
+    private static final Directive directiveDb = Asm8::db;
+    private static final Directive directiveDsw = Asm8::dsw;
+    private static final Directive directiveDsb = Asm8::dsb;
+    private static final Directive directiveAlign = Asm8::align;
+    private static final Directive directiveMacro = Asm8::macro;
+    private static final Directive directiveRept = Asm8::rept;
+    private static final Directive directiveEndM = Asm8::endm;
+    private static final Directive directiveEndR = Asm8::endr;
+    private static final Directive directiveEnum = Asm8::_enum;
+    private static final Directive directiveEndE = Asm8::ende;
+    private static final Directive directiveFillValue = Asm8::fillval;
+    private static final Directive directiveDl = Asm8::dl;
+    private static final Directive directiveDh = Asm8::dh;
+    private static final Directive directiveError = Asm8::makeError;
+    private static final ReservedWords reservedWords = new ReservedWords(reservedLabels());
+
+    private int oldPass = 0;
+    private int pass = 0;
+    private int scope = 0;
+    private int nextScope;
+    private boolean lastChance = false;
+    private boolean needAnotherPass = false;
+    private boolean[] ifDone = new boolean[IFNESTS];
+    private boolean[] skipLine = new boolean[IFNESTS];
+    private int defaultFiller;
+    private final SymbolTable symbols = new SymbolTable();
+    private Map<String, SourceFile> sourceCache = new HashMap<>();
+    private Map<String, MappedFile> binaries = new HashMap<>();
+    private final Map<String, List<Compiled>> expressions = new HashMap<>();
+    private final Slice expressionKey = new Slice();
+    private Label firstLabel = new Label("$", 0, Boolean.TRUE, Label.Type.VALUE);
+    private Label lastLabel;
+    private Label labelHere;
+    private int nestedIncludes = 0;
+    private int ifLevel = 0;
+    private int reptCount = 0;
+    private Object makeMacro = null;
+    private boolean noOutput = false;
+    private int insideMacro = 0;
+    private boolean verboseListing = false;
+    private String listFileName;
+    private String inputFileName;
+    private String outputFileName;
+    private final Image image = new Image();
+    private final byte[] outputBuffer = new byte[2];
+    private boolean verbose = true;
+    private PrintStream out = System.out;
+    private Map<String, byte[]> virtualFiles = Collections.emptyMap();
+    private File baseDir;
+    private Map<Path, Long> dependencies;//files read when watching or caching, with their time of modification
+    private boolean cache = false;
+    private boolean seed = false;
+    private Map<String, Integer> seeds;//values of the last build by scope and name, used on the first pass only
+    private List<Guess> guesses;
+    private boolean steeredByGuess;//an IF was evaluated after a guess, so the lines assembled may not be the real ones
+    private int lineGuesses;//guesses made before the current line
+    private final List<String> defined = new ArrayList<>();
+    private final Map<String, Snapshot> snapshots = new HashMap<>();
+    private Set<String> assumed;//names tested while undefined, when precompiling
+    private boolean readsProgramCounter;
+    private SourceFile standardInput;//the main source when it's read from a stream, spilled by SpilledLines
+    private int dependant;
+    private int enumSaveAddr;
+    private boolean equated;
+    private int labelCount;
+    private final Operand[] operands = {new Operand(), new Operand(), new Operand()};
+
+    public void setVerboseListing(boolean verboseListing) {
+        this.verboseListing = verboseListing;
+    }
+
+    public void setListFileName(String listFileName) {
+        this.listFileName = listFileName;
+    }
+
+    public void setInputFileName(String inputFileName) {
+        this.inputFileName = inputFileName;
+    }
+
+    public void setOutputFileName(String outputFileName) {
+        this.outputFileName = outputFileName;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && (args[0].startsWith("-S") || args[0].startsWith("-C"))) {
+            Path socket = args[0].length() > 2 ? Paths.get(args[0].substring(2))
+                : Paths.get(System.getProperty("user.home"), SOCKETFILE);
+
+            if (args[0].charAt(1) == 'S') {
+                System.exit(serve(socket.toAbsolutePath()));
+            }
+
+            System.exit(connect(socket.toAbsolutePath(), Arrays.copyOfRange(args, 1, args.length)));
+        }
+
+        System.exit(run(args, null, System.out, System.err, new Caches()));
+    }
+
+    static int run(String[] args, File baseDir, PrintStream out, PrintStream err, Caches caches) {
+        if (args.length < 1) {
+            showHelp(out);
+            return 1;
+        }
+
+        Asm8 asm8 = new Asm8();
+        asm8.out = out;
+        asm8.baseDir = baseDir;
+        asm8.sourceCache = caches.sources;
+        asm8.binaries = caches.binaries;
+        List<String> defines = new ArrayList<>();
+        List<List<String>> matrix = new ArrayList<>();
+        List<String> sources = null;
+        List<String> headers = null;
+        boolean watch = false;
+
+        int notOption = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i].startsWith("-") || args[i].startsWith("/")) && !args[i].equals(STDIN)) {
+                switch (args[i].charAt(1)) {
+                    case 'h':
+                    case '?':
+                        showHelp(out);
+                        return 0;
+                    case 'L':
+                        asm8.verboseListing = true;
+                    case 'l':
+                        asm8.listFileName = "";
+                        break;
+                    case 'd':
+                        if (args[i].length() > 2) {
+                            defines.add(args[i].substring(2));
+                        }
+                        break;
+                    case 'm':
+                        matrix.add(args[i].length() > 2 ? Arrays.asList(args[i].substring(2).split(",")) : Collections.emptyList());
+                        break;
+                    case 'q':
+                        asm8.verbose = false;
+                        break;
+                    case 'b':
+                        sources = new ArrayList<>();
+                        break;
+                    case 'p':
+                        headers = new ArrayList<>();
+                        break;
+                    case 'w':
+                        watch = true;
+                        break;
+                    case 'c':
+                        asm8.cache = true;
+                        break;
+                    case 's':
+                        asm8.seed = true;
+                        break;
+                    default:
+                        err.println("Error: unknown option: " + args[i]);
+                        return 0;
+                }
+            } else if (headers != null) {
+                headers.add(args[i]);
+            } else if (sources != null) {
+                sources.add(args[i]);
+            } else {
+                if (notOption == 0) {
+                    asm8.inputFileName = args[i];
+                } else if (notOption == 1) {
+                    asm8.outputFileName = args[i];
+                } else if (notOption == 2) {
+                    asm8.listFileName = args[i];
+                } else {
+                    err.println("Error: unused argument: " + args[i]);
+                    return 0;
+                }
+
+                notOption++;
+            }
+        }
+
+        if (headers != null) {
+            if (headers.isEmpty()) {
+                err.println("Error: No source file specified.");
+                return 0;
+            }
+
+            for (String header : headers) {
+                asm8.precompile(header, err);
+            }
+
+            return 0;
+        }
+
+        if (sources != null) {
+            if (asm8.inputFileName != null) {
+                err.println("Error: unused argument: " + asm8.inputFileName);
+                return 0;
+            }
+
+            try {
+                sources = findSources(sources, baseDir);
+            } catch (IOException e) {
+                err.println("Error: can't read " + e.getMessage());
+                return 0;
+            }
+
+            if (sources.isEmpty()) {
+                err.println("Error: No source file specified.");
+                return 0;
+            }
+
+            if (matrix.isEmpty()) {
+                matrix.add(Collections.emptyList());
+            }
+
+            if (watch) {
+                return watch(asm8, sources, defines, matrix, err);
+            }
+
+            compileAll(asm8, sources, defines, matrix, err);
+            return 0;
+        }
+
+        if (asm8.inputFileName == null) {
+            err.println("Error: No source file specified.");
+            return 0;
+        }
+
+        if (asm8.inputFileName.equals(STDIN)) {
+            if (asm8.outputFileName == null) {
+                err.println("Error: No output file specified.");
+                return 0;
+            }
+
+            if (baseDir != null) {
+                err.println("Error: The server can't read standard input.");
+                return 0;
+            }
+
+            try {
+                asm8.standardInput = new SourceFile(0, SpilledLines.spill(new InputStreamReader(System.in, StandardCharsets.UTF_8)), false);
+            } catch (IOException e) {
+                err.println("Can't read standard input.");
+                return 0;
+            }
+        }
+
+        if (asm8.outputFileName == null) {
+            asm8.outputFileName = asm8.inputFileName.substring(0, asm8.inputFileName.lastIndexOf('.')).concat(".bin");
+        }
+
+        if (watch) {
+            if (matrix.isEmpty()) {
+                matrix.add(Collections.emptyList());
+            }
+
+            return watch(asm8, Collections.singletonList(asm8.inputFileName), defines, matrix, err);
+        }
+
+        if (!matrix.isEmpty()) {
+            compileAll(asm8, Collections.singletonList(asm8.inputFileName), defines, matrix, err);
+            return 0;
+        }
+
+        defines.forEach(asm8::define);
+
+        if (asm8.cache) {
+            if (asm8.upToDate()) {
+                return 0;
+            }
+
+            asm8.dependencies = new LinkedHashMap<>();
+        }
+
+        try {
+            deleteIfExists(resolve(baseDir, asm8.outputFileName).toPath());
+        } catch (IOException e) {
+            err.println("Can't delete old output file");
+            return 0;
+        }
+
+        if (asm8.listFileName != null) {
+            if (asm8.listFileName.isEmpty()) {
+                asm8.listFileName = asm8.standardInput != null
+                                    ? siblingFileName(asm8.outputFileName, ".lst")
+                                    : asm8.inputFileName.substring(0, asm8.inputFileName.lastIndexOf('.')).concat(".lst");
+            }
+
+            try {
+                deleteIfExists(resolve(baseDir, asm8.listFileName).toPath());
+            } catch (IOException e) {
+                err.println("Can't delete old list file");
+                return 0;
+            }
+        }
+
+        try {
+            asm8.compile();
+        } catch (Exception e) {
+            err.println(e.getMessage());
+        }
+
+        return 0;
+    }
+
+    private static int watch(Asm8 asm8, List<String> inputFileNames, List<String> defines, List<List<String>> matrix, PrintStream err) {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Set<Path> dirs = new HashSet<>();
+
+            while (!asm8.out.checkError()) {
+                long start = System.nanoTime();
+                asm8.dependencies = new HashMap<>();
+                compileAll(asm8, inputFileNames, defines, matrix, err);
+
+                if (asm8.verbose) {
+                    asm8.out.printf("Assembled in %d ms, watching %d files.\n", (System.nanoTime() - start) / 1000000, asm8.dependencies.size());
+                }
+
+                for (Path file : asm8.dependencies.keySet()) {
+                    Path dir = file.getParent();
+
+                    if (Files.isDirectory(dir) && dirs.add(dir)) {
+                        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    }
+                }
+
+                waitForChange(watcher, asm8.dependencies.keySet());
+            }
+        } catch (IOException e) {
+            err.println("Can't watch source files.");
+        } catch (InterruptedException ignored) {
+        }
+
+        return 0;
+    }
+
+    private static void waitForChange(WatchService watcher, Set<Path> files) throws InterruptedException {
+        boolean changed = false;
+
+        for (WatchKey key = watcher.take(); key != null; key = watcher.poll(changed ? 50 : Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+            Path dir = (Path) key.watchable();
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || files.contains(dir.resolve((Path) event.context()))) {
+                    changed = true;
+                }
+            }
+
+            key.reset();
+        }
+    }
+
+    // @name lists one file per line, and * or ? in the last part matches the files of that directory.
+    private static List<String> findSources(List<String> names, File baseDir) throws IOException {
+        List<String> sources = new ArrayList<>();
+
+        for (String name : names) {
+            if (name.startsWith("@")) {
+                try {
+                    for (String line : Files.readAllLines(resolve(baseDir, name.substring(1)).toPath())) {
+                        line = line.trim();
+
+                        if (!line.isEmpty() && !line.startsWith(";")) {
+                            sources.add(line);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IOException(name.substring(1), e);
+                }
+            } else if (name.indexOf('*') >= 0 || name.indexOf('?') >= 0) {
+                String dir = new File(name).getParent();
+                List<String> found = new ArrayList<>();
+
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(resolve(baseDir, dir == null ? "." : dir).toPath(), new File(name).getName())) {
+                    for (Path file : files) {
+                        found.add(dir == null ? file.getFileName().toString() : new File(dir, file.getFileName().toString()).getPath());
+                    }
+                } catch (IOException e) {
+                    throw new IOException(name, e);
+                }
+
+                Collections.sort(found);
+                sources.addAll(found);
+            } else {
+                sources.add(name);
+            }
+        }
+
+        return sources;
+    }
+
+    private static File resolve(File baseDir, String name) {
+        File file = new File(name);
+        return baseDir == null || file.isAbsolute() ? file : new File(baseDir, name);
+    }
+
+    private static int serve(Path socket) {
+        Caches caches = new Caches();
+        int threads = Runtime.getRuntime().availableProcessors();
+        //when every thread is busy and the queue is full, accepting waits for the build at hand
+        ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try (ServerSocketChannel server = listen(socket)) {
+            System.out.printf("asm8 %s listening on %s.\n", VERSION, socket);
+
+            while (true) {
+                SocketChannel client = server.accept();
+                pool.execute(() -> serve(client, caches));
+            }
+        } catch (IOException e) {
+            System.err.printf("Can't listen on %s: %s\n", socket, e.getMessage());
+            return 1;
+        }
+    }
+
+    // The server runs any command line in any directory for whoever reaches the socket, so it goes in a directory only
+    // its owner can enter, made so if it doesn't exist.
+    private static ServerSocketChannel listen(Path socket) throws IOException {
+        Path dir = socket.getParent();
+
+        if (Files.notExists(dir)) {
+            if (isPosix()) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNERONLY));
+                Files.setPosixFilePermissions(dir, OWNERONLY);
+            } else {
+                Files.createDirectories(dir);
+            }
+        }
+
+        if (!isPrivate(dir)) {
+            throw new IOException(dir + " can be entered by other users");
+        }
+
+        if (Files.exists(socket)) {
+            if (isListening(socket)) {
+                throw new IOException("a server is already running");
+            }
+
+            Files.delete(socket);//left behind by a server that was killed
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        socket.toFile().deleteOnExit();
+
+        if (isPosix()) {
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        }
+
+        return server;
+    }
+
+    private static boolean isListening(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static boolean isPrivate(Path dir) throws IOException {
+        return !isPosix() || (OWNERONLY.containsAll(Files.getPosixFilePermissions(dir))
+            && Files.getOwner(dir).getName().equals(System.getProperty("user.name")));
+    }
+
+    // Frames follow the command line, then a zero and the exit code.
+    private static void serve(SocketChannel socket, Caches caches) {
+        try (SocketChannel client = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)))) {
+            File baseDir = new File(in.readUTF());
+            String[] args = new String[in.readInt()];
+
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            PrintStream out = new PrintStream(new Frames(data, 1), true);
+            PrintStream err = new PrintStream(new Frames(data, 2), true);
+            int code = run(args, baseDir, out, err, caches);
+            out.flush();
+            err.flush();
+
+            synchronized (data) {
+                data.writeByte(0);
+                data.writeInt(code);
+            }
+        } catch (IOException ignored) {//the client went away
+        }
+    }
+
+    private static int connect(Path socket, String[] args) {
+        SocketChannel channel;
+
+        if (Arrays.asList(args).contains(STDIN)) {//the server can't read our standard input
+            return run(args, null, System.out, System.err, new Caches());
+        }
+
+        try {
+            if (Files.notExists(socket)) {
+                throw new IOException("no server is running");
+            }
+
+            if (!isPrivate(socket.getParent())) {//not our server
+                throw new IOException(socket.getParent() + " can be entered by other users");
+            }
+
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            System.err.printf("Can't reach server on %s: %s, assembling here.\n", socket, e.getMessage());
+            return run(args, null, System.out, System.err, new Caches());
+        }
+
+        try (SocketChannel server = channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(server)));
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(server)))) {
+            data.writeUTF(new File("").getAbsolutePath());
+            data.writeInt(args.length);
+
+            for (String arg : args) {
+                data.writeUTF(arg);
+            }
+
+            data.flush();
+
+            for (int stream = in.readByte(); stream != 0; stream = in.readByte()) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                PrintStream out = stream == 1 ? System.out : System.err;
+                out.write(bytes, 0, bytes.length);
+                out.flush();
+            }
+
+            return in.readInt();
+        } catch (IOException e) {
+            System.err.println("Lost connection to server.");
+            return 1;
+        }
+    }
+
+    private static void compileAll(Asm8 asm8, List<String> inputFileNames, List<String> defines, List<List<String>> matrix, PrintStream err) {
+        List<ByteArrayOutputStream> logs = new ArrayList<>();
+        List<Callable<String>> jobs = new ArrayList<>();
+        List<Asm8> variants = new ArrayList<>();
+
+        for (String inputFileName : inputFileNames) {
+            for (List<String> names : matrix) {
+                Asm8 variant = asm8.withOptions();
+                variant.inputFileName = inputFileName;
+                variant.outputFileName = variantFileName(asm8.outputFileName != null
+                                                         ? asm8.outputFileName
+                                                         : inputFileName.substring(0, inputFileName.lastIndexOf('.')).concat(".bin"), names);
+                variant.dependencies = asm8.dependencies != null || asm8.cache ? new LinkedHashMap<>() : null;
+
+                if (asm8.listFileName != null) {
+                    variant.listFileName = variantFileName(asm8.listFileName.isEmpty()
+                                                           ? inputFileName.substring(0, inputFileName.lastIndexOf('.')).concat(".lst")
+                                                           : asm8.listFileName, names);
+                }
+
+                defines.forEach(variant::define);
+                names.forEach(variant::define);
+
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                variant.out = new PrintStream(log, true);
+                logs.add(log);
+                variants.add(variant);
+                jobs.add(() -> {
+                    try {
+                        if (variant.upToDate()) {
+                            return null;
+                        }
+
+                        deleteIfExists(resolve(variant.baseDir, variant.outputFileName).toPath());
+
+                        if (variant.listFileName != null) {
+                            deleteIfExists(resolve(variant.baseDir, variant.listFileName).toPath());
+                        }
+
+                        variant.compile();
+
+                        return null;
+                    } catch (IOException e) {
+                        return "Can't delete old output file";
+                    } catch (Exception e) {
+                        return e.getMessage();
+                    }
+                });
+            }
+        }
+
+        ExecutorService pool = Executors.newWorkStealingPool(Math.min(jobs.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<String>> errors = jobs.stream().map(pool::submit).collect(Collectors.toList());
+
+        pool.shutdown();
+
+        for (int i = 0; i < jobs.size(); i++) {
+            String error;
+
+            try {
+                error = errors.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                error = e.getMessage();
+            }
+
+            asm8.out.print(logs.get(i));
+
+            if (asm8.dependencies != null) {
+                asm8.dependencies.putAll(variants.get(i).dependencies);
+            }
+
+            if (error != null) {
+                err.println(error);
+            }
+        }
+    }
+
+    // Variant files are named base-DEF1-DEF2.ext.
+    private static String variantFileName(String fileName, List<String> names) {
+        int dot = fileName.lastIndexOf('.');
+        String suffix = names.stream().map(name -> "-" + name).collect(Collectors.joining());
+
+        if (dot <= fileName.lastIndexOf(File.separatorChar)) {
+            return fileName + suffix;
+        }
+
+        return fileName.substring(0, dot) + suffix + fileName.substring(dot);
+    }
+
+    public void define(String name) {
+        defined.add(name);
+
+        if (findLabel(name) == null) {
+            Label label = new Label(name, 1, Boolean.TRUE, Label.Type.VALUE);
+            label.pass = 0;
+            symbols.add(label);
+        }
+    }
+
+    private static void showHelp(PrintStream out) {
+        out.println();
+        out.println("asm8 " + VERSION);
+        out.println();
+        out.println("Usage:  asm8 [-options] sourcefile [outputfile] [listfile]");
+        out.println("    -?          show this help");
+        out.println("    -l          create listing");
+        out.println("    -L          create verbose listing (expand REPT, MACRO)");
+        out.println("    -d<name>    define symbol");
+        out.println("    -m<names>   build a variant with these comma separated symbols defined,");
+        out.println("                one per -m, concurrently (output named sourcefile-NAME1-NAME2.bin)");
+        out.println("    -q          quiet mode (no output unless error)");
+        out.println("    -           as sourcefile, read the source from standard input (outputfile required)");
+        out.println("    -c          skip assembling if nothing changed since the build recorded in outputfile.manifest,");
+        out.println("                and write that manifest and a make dependency file outputfile.d");
+        out.println("    -s          start from the labels of the last build, kept in outputfile.sym, to need fewer passes");
+        out.println("    -p          precompile each file that follows into file.snap, a snapshot of the labels it");
+        out.println("                defines that INCLUDE loads instead of the file while it's unchanged");
+        out.println("    -w          watch mode: assemble again whenever a file read by the last build changes");
+        out.println("    -b          batch mode: assemble every sourcefile that follows concurrently, where");
+        out.println("                @file names a file listing them and *.asm matches them");
+        out.println("                since the last pass instead of evaluating them again");
+        out.println("    -S[socket]  run as a server on a socket in a directory only you can enter (default");
+        out.println("                ~/" + SOCKETFILE + "), keeping the JVM and the unchanged source files warm between");
+        out.println("                builds (first option only)");
+        out.println("    -C[socket]  assemble on the server at that socket, or here if there is none (first option only)");
+        out.println();
+        out.println("See README.TXT for more info.");
+    }
+
+    public void compile() {
+        if (seed) {
+            readSeeds();
+        }
+
+        try {
+            runPasses();
+
+            if (oldPass != 0) {
+                writeImage();
+
+                if (verbose) {
+                    out.printf("%s written (%d bytes).\n", outputFileName, image.size());
+                }
+
+                if (seed) {
+                    writeSymbols();
+                }
+
+                if (cache) {
+                    writeManifest();
+                }
+            }
+        } catch (RuntimeException e) {
+            if (followsGuess(e)) {
+                compileWithoutGuesses();
+                return;
+            }
+
+            try {
+                deleteIfExists(resolve(baseDir, outputFileName).toPath());
+            } catch (IOException ignored) {
+            }
+
+            if (e.getMessage() == null) {//not one of ours, so at least name it
+                throw new RuntimeException(String.format("%s: %s", outputFileName, e), e);
+            }
+
+            throw e;
+        }
+    }
+
+    private void compileWithoutGuesses() {
+        Asm8 cold = unseeded();
+        cold.compile();
+
+        if (seed && cold.oldPass != 0) {
+            cold.writeSymbols();
+        }
+    }
+
+    private Asm8 unseeded() {
+        Asm8 cold = withOptions();
+        cold.seed = false;
+        cold.inputFileName = inputFileName;
+        cold.outputFileName = outputFileName;
+        cold.listFileName = listFileName;
+        cold.dependencies = dependencies;
+        defined.forEach(cold::define);
+
+        return cold;
+    }
+
+    private Asm8 withOptions() {
+        Asm8 asm8 = new Asm8();
+        asm8.verbose = verbose;
+        asm8.verboseListing = verboseListing;
+        asm8.cache = cache;
+        asm8.seed = seed;
+        asm8.baseDir = baseDir;
+        asm8.sourceCache = sourceCache;
+        asm8.binaries = binaries;
+        asm8.virtualFiles = virtualFiles;
+        asm8.standardInput = standardInput;
+        asm8.out = out;
+
+        return asm8;
+    }
+
+    private boolean upToDate() {
+        if (!cache || standardInput != null) {
+            return false;
+        }
+
+        try {
+            List<String> manifest = Files.readAllLines(resolve(baseDir, siblingFileName(outputFileName, ".manifest")).toPath());
+            List<String> header = manifestHeader();
+
+            if (manifest.size() <= header.size() || !manifest.subList(0, header.size()).equals(header)) {
+                return false;
+            }
+
+            boolean output = false;
+
+            for (String line : manifest.subList(header.size(), manifest.size())) {
+                String[] entry = line.split(" ", 3);
+
+                if (entry.length < 3) {
+                    return false;
+                }
+
+                if (entry[0].equals("output")) {
+                    output = entry[2].equals(outputFileName) && entry[1].equals(hash(resolve(baseDir, outputFileName).toPath()));
+                } else if (!entry[0].equals("file") || !entry[1].equals(hash(Paths.get(entry[2])))) {
+                    return false;
+                }
+            }
+
+            if (output && verbose) {
+                out.printf("%s is up to date.\n", outputFileName);
+            }
+
+            return output;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private List<String> manifestHeader() {
+        List<String> header = new ArrayList<>();
+        header.add("asm8 " + VERSION);
+        defined.stream().sorted().distinct().forEach(name -> header.add("define " + name));
+
+        return header;
+    }
+
+    private void writeManifest() {
+        Path manifestFile = resolve(baseDir, siblingFileName(outputFileName, ".manifest")).toPath();
+        List<String> manifest = manifestHeader();
+        StringBuilder rule = new StringBuilder(makeFileName(outputFileName)).append(':');
+        StringBuilder targets = new StringBuilder();
+
+        try {
+            for (Map.Entry<Path, Long> file : dependencies.entrySet()) {
+                if (file.getKey().toFile().lastModified() != file.getValue()) {//changed while assembling, so let the next build run
+                    deleteIfExists(manifestFile);
+                    return;
+                }
+
+                manifest.add("file " + hash(file.getKey()) + " " + file.getKey());
+                rule.append(' ').append(makeFileName(file.getKey().toString()));
+                targets.append(makeFileName(file.getKey().toString())).append(":\n");
+            }
+
+            MessageDigest output = sha256();
+            image.digest(output);
+            manifest.add("output " + HexFormat.of().formatHex(output.digest()) + " " + outputFileName);
+            Files.write(manifestFile, manifest);
+            Files.write(resolve(baseDir, siblingFileName(outputFileName, ".d")).toPath(),
+                        rule.append("\n\n").append(targets).toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new Asm8Exception("Can't create manifest file.");
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFSIZE];
+
+            for (int length; (length = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, length);
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String makeFileName(String name) {
+        return name.replace("$", "$$").replace(" ", "\\ ").replace("#", "\\#");
+    }
+
+    private static String siblingFileName(String fileName, String extension) {
+        int dot = fileName.lastIndexOf('.');
+
+        if (dot <= fileName.lastIndexOf(File.separatorChar)) {
+            return fileName + extension;
+        }
+
+        return fileName.substring(0, dot) + extension;
+    }
+
+    // Every call works on its own state, so calls can run in parallel.
+    public static AssemblyResult assemble(AssemblyRequest request) {
+        Asm8 asm8 = new Asm8();
+        asm8.verbose = false;
+        asm8.inputFileName = request.fileName;
+        asm8.virtualFiles = request.files;
+        request.defines.forEach(asm8::define);
+
+        try {
+            if (request.source != null) {
+                asm8.standardInput = new SourceFile(0, SpilledLines.spill(request.source), false);
+            }
+
+            asm8.runPasses();
+        } catch (Exception e) {
+            return new AssemblyResult(null, asm8.symbols.globals(), Collections.singletonList(e.getMessage()));
+        }
+
+        return new AssemblyResult(asm8.image.toByteArray(), asm8.symbols.globals(), Collections.emptyList());
+    }
+
+    private void runPasses() {
+        Label currLabel = null;
+
+        do {
+            pass++;
+
+            if (pass == MAXPASSES || (currLabel != null && currLabel.equals(lastLabel))) {
+                lastChance = true;
+
+                if (verbose) {
+                    out.println("last try..");
+                }
+            } else if (verbose) {
+                out.printf("pass %s..\n", pass);
+            }
+
+            needAnotherPass = false;
+            skipLine[0] = false;
+            scope = 1;
+            nextScope = 2;
+            defaultFiller = DEFAULTFILLER;
+            firstLabel.value = NOORIGIN;
+            currLabel = lastLabel;
+
+            include(null, new Cursor(inputFileName));
+
+            if (guesses != null) {
+                confirmGuesses();
+            }
+        }
+        while (!lastChance && needAnotherPass);
+    }
+
+    private void readSeeds() {
+        seeds = new HashMap<>();
+        guesses = new ArrayList<>();
+
+        try {
+            for (String line : Files.readAllLines(resolve(baseDir, siblingFileName(outputFileName, ".sym")).toPath())) {
+                String[] entry = line.split(" ");
+
+                if (entry.length == 3 || (entry.length == 4 && entry[3].equals("="))) {
+                    int value = Integer.parseInt(entry[2]);
+
+                    //an address that fits the zero page stays unknown, as on a pass without seeds, or it could pick
+                    //zero page addressing for itself and keep its place there
+                    seeds.put(entry[1] + " " + entry[0], entry.length == 3 && value <= 0xFF ? null : value);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            seeds = null;
+            guesses = null;
+        }
+    }
+
+    // A global '+' label is told apart from the others of its name by how many come before it.
+    private Integer guess(CharSequence name) {
+        if (seeds == null || name.charAt(0) == '-') {
+            return null;
+        }
+
+        String word = name.toString();
+        int index = word.charAt(0) == '+' ? symbols.nameless(word) : -1;
+        String key = scope + " " + word;
+
+        if (!seeds.containsKey(key)) {
+            key = (index < 0 ? "0" : "#" + index) + " " + word;
+        }
+
+        Integer value = seeds.get(key);
+
+        if (value != null) {
+            guesses.add(new Guess(word, scope, index, value));
+        }
+
+        return value;
+    }
+
+    // The seeds stand for the labels of a pass before the first, so when every guess is what its label ended up with
+    // and nothing else asked for another pass, the first pass is the last one.
+    private void confirmGuesses() {
+        if (!guessesHeld()) {
+            needAnotherPass = true;
+        }
+
+        seeds = null;
+        guesses = null;
+    }
+
+    // Only a failure on a line that used a guess, one that depends on values, or any failure once a guess may have
+    // picked the lines that are assembled, is worth a build without the seeds.
+    private boolean followsGuess(Throwable e) {
+        if (guesses == null || guesses.isEmpty()) {
+            return false;
+        }
+
+        while (e.getCause() != null) {
+            e = e.getCause();
+        }
+
+        return steeredByGuess || guesses.size() > lineGuesses || e instanceof OutOfRangeException || e instanceof BranchOutOfRangeException
+            || e instanceof PCOutOfRangeException || e instanceof SeeKOutOfRangeException
+            || e instanceof BadIncbinSizeException || e instanceof DivideByZeroException || e instanceof BadAddrException;
+    }
+
+    private boolean guessesHeld() {
+        for (Guess guess : guesses) {
+            Label label = findLabel(guess.name, guess.scope);
+
+            if (label == null && guess.index >= 0) {
+                label = symbols.nameless(guess.name, guess.index);
+            }
+
+            if (label == null || label.line == null || (label.type != Label.Type.LABEL && label.type != Label.Type.VALUE)
+                || (int) label.value != guess.value) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void writeSymbols() {
+        List<String> lines = new ArrayList<>();
+
+        for (Label label : symbols.known()) {
+            lines.add(label.name + " " + label.scope + " " + label.value + (label.type == Label.Type.VALUE ? " =" : ""));
+        }
+
+        symbols.forEachNameless((label, index) -> lines.add(label.name + " #" + index + " " + label.value));
+
+        try {
+            Files.write(resolve(baseDir, siblingFileName(outputFileName, ".sym")).toPath(), lines);
+        } catch (IOException e) {
+            throw new Asm8Exception("Can't create symbol file.");
+        }
+    }
+
+    private static List<Label> reservedLabels() {
+        List<Label> words = new ArrayList<>();
+        Directive opcode = directiveOpcode;
+        words.add(new Label("BRK",
+                            opcode,
+                            opMap(0x00, OpType.IMM, 0x00, OpType.ZP, 0x00, OpType.IMP),
+                            Label.Type.RESERVED));
+        words.add(new Label("PHP", opcode, opMap(0x08, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BPL", opcode, opMap(0x10, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("CLC", opcode, opMap(0x18, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("JSR", opcode, opMap(0x20, OpType.ABS), Label.Type.RESERVED));
+        words.add(new Label("BIT", opcode, opMap(0x24, OpType.ZP, 0x2c, OpType.ABS), Label.Type.RESERVED));
+        words.add(new Label("PLP", opcode, opMap(0x28, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BMI", opcode, opMap(0x30, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("SEC", opcode, opMap(0x38, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("RTI", opcode, opMap(0x40, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("PHA", opcode, opMap(0x48, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("JMP", opcode, opMap(0x6c, OpType.IND, 0x4c, OpType.ABS), Label.Type.RESERVED));
+        words.add(new Label("BVC", opcode, opMap(0x50, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("CLI", opcode, opMap(0x58, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("RTS", opcode, opMap(0x60, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("PLA", opcode, opMap(0x68, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BVS", opcode, opMap(0x70, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("SEI", opcode, opMap(0x78, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("STY",
+                            opcode,
+                            opMap(0x94, OpType.ZPX, 0x84, OpType.ZP, 0x8c, OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("STX",
+                            opcode,
+                            opMap(0x96, OpType.ZPY, 0x86, OpType.ZP, 0x8e, OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("DEY", opcode, opMap(0x88, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("TXA", opcode, opMap(0x8a, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BCC", opcode, opMap(0x90, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("TYA", opcode, opMap(0x98, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("TXS", opcode, opMap(0x9a, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("TAY", opcode, opMap(0xa8, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("TAX", opcode, opMap(0xaa, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BCS", opcode, opMap(0xb0, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("CLV", opcode, opMap(0xb8, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("TSX", opcode, opMap(0xba, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("CPY",
+                            opcode,
+                            opMap(0xc0, OpType.IMM, 0xc4, OpType.ZP, 0xcc, OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("DEC",
+                            opcode,
+                            opMap(0xd6, OpType.ZPX, 0xde, OpType.ABSX, 0xc6, OpType.ZP, 0xce, OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("INY", opcode, opMap(0xc8, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("DEX", opcode, opMap(0xca, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BNE", opcode, opMap(0xd0, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("CLD", opcode, opMap(0xd8, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("CPX",
+                            opcode,
+                            opMap(0xe0, OpType.IMM, 0xe4, OpType.ZP, 0xec, OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("INC",
+                            opcode,
+                            opMap(0xf6, OpType.ZPX, 0xfe, OpType.ABSX, 0xe6, OpType.ZP, 0xee, OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("INX", opcode, opMap(0xe8, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("NOP", opcode, opMap(0xea, OpType.IMP), Label.Type.RESERVED));
+        words.add(new Label("BEQ", opcode, opMap(0xf0, OpType.REL), Label.Type.RESERVED));
+        words.add(new Label("LDY",
+                            opcode,
+                            opMap(0xa0,
+                                  OpType.IMM,
+                                  0xb4,
+                                  OpType.ZPX,
+                                  0xbc,
+                                  OpType.ABSX,
+                                  0xa4,
+                                  OpType.ZP,
+                                  0xac,
+                                  OpType.ABS),
+                            Label.Type.RESERVED));
+        words.add(new Label("LDX",
+                            opcode,
+                            opMap(0xa2,
+                                  OpType.IMM,
+                                  0xb6,
+                                  OpType.ZPY,
+                                  0xbe,
+                                  OpType.ABSY,
+                                  0xa6,
+                                  OpType.ZP,
+                                  0xae,
+                                  OpType.ABS),
+                            Label.Type.RESERVED));
+        OpMap oraMap = opMap(0x09,
+                             OpType.IMM,
+                             0x01,
+                             OpType.INDX,
+                             0x11,
+                             OpType.INDY,
+                             0x15,
+                             OpType.ZPX,
+                             0x1d,
+                             OpType.ABSX,
+                             0x19,
+                             OpType.ABSY,
+                             0x05,
+                             OpType.ZP,
+                             0x0d,
+                             OpType.ABS);
+        OpMap aslMap = opMap(0x0a, OpType.ACC, 0x16, OpType.ZPX, 0x1e, OpType.ABSX, 0x06, OpType.ZP, 0x0e, OpType.ABS, 0x0a, OpType.IMP);
+        OpMap andMap = opMap(0x29,
+                             OpType.IMM,
+                             0x21,
+                             OpType.INDX,
+                             0x31,
+                             OpType.INDY,
+                             0x35,
+                             OpType.ZPX,
+                             0x3d,
+                             OpType.ABSX,
+                             0x39,
+                             OpType.ABSY,
+                             0x25,
+                             OpType.ZP,
+                             0x2d,
+                             OpType.ABS);
+        OpMap rolMap = opMap(0x2a, OpType.ACC, 0x36, OpType.ZPX, 0x3e, OpType.ABSX, 0x26, OpType.ZP, 0x2e, OpType.ABS, 0x2a, OpType.IMP);
+        OpMap eorMap = opMap(0x49,
+                             OpType.IMM,
+                             0x41,
+                             OpType.INDX,
+                             0x51,
+                             OpType.INDY,
+                             0x55,
+                             OpType.ZPX,
+                             0x5d,
+                             OpType.ABSX,
+                             0x59,
+                             OpType.ABSY,
+                             0x45,
+                             OpType.ZP,
+                             0x4d,
+                             OpType.ABS);
+        OpMap lsrMap = opMap(0x4a, OpType.ACC, 0x56, OpType.ZPX, 0x5e, OpType.ABSX, 0x46, OpType.ZP, 0x4e, OpType.ABS, 0x4a, OpType.IMP);
+        OpMap adcMap = opMap(0x69,
+                             OpType.IMM,
+                             0x61,
+                             OpType.INDX,
+                             0x71,
+                             OpType.INDY,
+                             0x75,
+                             OpType.ZPX,
+                             0x7d,
+                             OpType.ABSX,
+                             0x79,
+                             OpType.ABSY,
+                             0x65,
+                             OpType.ZP,
+                             0x6d,
+                             OpType.ABS);
+        OpMap rorMap = opMap(0x6a, OpType.ACC, 0x76, OpType.ZPX, 0x7e, OpType.ABSX, 0x66, OpType.ZP, 0x6e, OpType.ABS, 0x6a, OpType.IMP);
+        OpMap staMap = opMap(0x81, OpType.INDX, 0x91, OpType.INDY, 0x95, OpType.ZPX, 0x9d, OpType.ABSX, 0x99, OpType.ABSY, 0x85, OpType.ZP, 0x8d, OpType.ABS);
+        OpMap ldaMap = opMap(0xa9,
+                             OpType.IMM,
+                             0xa1,
+                             OpType.INDX,
+                             0xb1,
+                             OpType.INDY,
+                             0xb5,
+                             OpType.ZPX,
+                             0xbd,
+                             OpType.ABSX,
+                             0xb9,
+                             OpType.ABSY,
+                             0xa5,
+                             OpType.ZP,
+                             0xad,
+                             OpType.ABS);
+        OpMap cmpMap = opMap(0xc9,
+                             OpType.IMM,
+                             0xc1,
+                             OpType.INDX,
+                             0xd1,
+                             OpType.INDY,
+                             0xd5,
+                             OpType.ZPX,
+                             0xdd,
+                             OpType.ABSX,
+                             0xd9,
+                             OpType.ABSY,
+                             0xc5,
+                             OpType.ZP,
+                             0xcd,
+                             OpType.ABS);
+        OpMap sbcMap = opMap(0xe9,
+                             OpType.IMM,
+                             0xe1,
+                             OpType.INDX,
+                             0xf1,
+                             OpType.INDY,
+                             0xf5,
+                             OpType.ZPX,
+                             0xfd,
+                             OpType.ABSX,
+                             0xf9,
+                             OpType.ABSY,
+                             0xe5,
+                             OpType.ZP,
+                             0xed,
+                             OpType.ABS);
+        words.add(new Label("ORA", opcode, oraMap, Label.Type.RESERVED));
+        words.add(new Label("ASL", opcode, aslMap, Label.Type.RESERVED));
+        words.add(new Label("AND", opcode, andMap, Label.Type.RESERVED));
+        words.add(new Label("ROL", opcode, rolMap, Label.Type.RESERVED));
+        words.add(new Label("EOR", opcode, eorMap, Label.Type.RESERVED));
+        words.add(new Label("LSR", opcode, lsrMap, Label.Type.RESERVED));
+        words.add(new Label("ADC", opcode, adcMap, Label.Type.RESERVED));
+        words.add(new Label("ROR", opcode, rorMap, Label.Type.RESERVED));
+        words.add(new Label("STA", opcode, staMap, Label.Type.RESERVED));
+        words.add(new Label("LDA", opcode, ldaMap, Label.Type.RESERVED));
+        words.add(new Label("CMP", opcode, cmpMap, Label.Type.RESERVED));
+        words.add(new Label("SBC", opcode, sbcMap, Label.Type.RESERVED));
+
+        words.add(new Label("", directiveNothing, Label.Type.RESERVED));
+        words.add(new Label("IF", directiveIf, Label.Type.RESERVED));
+        words.add(new Label("ELSEIF", directiveElseIf, Label.Type.RESERVED));
+        words.add(new Label("ELSE", directiveElse, Label.Type.RESERVED));
+        words.add(new Label("ENDIF", directiveEndIf, Label.Type.RESERVED));
+        words.add(new Label("IFDEF", directiveIfDef, Label.Type.RESERVED));
+        words.add(new Label("IFNDEF", directiveIfNDef, Label.Type.RESERVED));
+        words.add(new Label("=", directiveEqual, Label.Type.RESERVED));
+        words.add(new Label("EQU", directiveEqu, Label.Type.RESERVED));
+        words.add(new Label("ORG", directiveOrg, Label.Type.RESERVED));
+        words.add(new Label("BASE", directiveBase, Label.Type.RESERVED));
+        words.add(new Label("PAD", directivePad, Label.Type.RESERVED));
+        words.add(new Label("INCLUDE", directiveInclude, Label.Type.RESERVED));
+        words.add(new Label("INCSRC", directiveInclude, Label.Type.RESERVED));
+        words.add(new Label("INCBIN", directiveIncBin, Label.Type.RESERVED));
+        words.add(new Label("BIN", directiveIncBin, Label.Type.RESERVED));
+        words.add(new Label("HEX", directiveHex, Label.Type.RESERVED));
+        words.add(new Label("WORD", directiveDw, Label.Type.RESERVED));
+        words.add(new Label("DW", directiveDw, Label.Type.RESERVED));
+        words.add(new Label("DCW", directiveDw, Label.Type.RESERVED));
+        words.add(new Label("DC.W", directiveDw, Label.Type.RESERVED));
+        words.add(new Label("BYTE", directiveDb, Label.Type.RESERVED));
+        words.add(new Label("DB", directiveDb, Label.Type.RESERVED));
+        words.add(new Label("DCB", directiveDb, Label.Type.RESERVED));
+        words.add(new Label("DC.B", directiveDb, Label.Type.RESERVED));
+        words.add(new Label("DSW", directiveDsw, Label.Type.RESERVED));
+        words.add(new Label("DS.W", directiveDsw, Label.Type.RESERVED));
+        words.add(new Label("DSB", directiveDsb, Label.Type.RESERVED));
+        words.add(new Label("DS.B", directiveDsb, Label.Type.RESERVED));
+        words.add(new Label("ALIGN", directiveAlign, Label.Type.RESERVED));
+        words.add(new Label("MACRO", directiveMacro, Label.Type.RESERVED));
+        words.add(new Label("REPT", directiveRept, Label.Type.RESERVED));
+        words.add(new Label("ENDM", directiveEndM, Label.Type.RESERVED));
+        words.add(new Label("ENDR", directiveEndR, Label.Type.RESERVED));
+        words.add(new Label("ENUM", directiveEnum, Label.Type.RESERVED));
+        words.add(new Label("ENDE", directiveEndE, Label.Type.RESERVED));
+        words.add(new Label("FILLVALUE", directiveFillValue, Label.Type.RESERVED));
+        words.add(new Label("DL", directiveDl, Label.Type.RESERVED));
+        words.add(new Label("DH", directiveDh, Label.Type.RESERVED));
+        words.add(new Label("ERROR", directiveError, Label.Type.RESERVED));
+
+        return words;
+    }
+
+    private void processFile(File file) {
+        int nline = 0;
+        nestedIncludes++;
+
+        try {
+            SourceFile source = readSource(file);
+
+            while (nline < source.lines.size()) {
+                if (skipLine[ifLevel] && listFileName == null && (nline = skipLines(source, nline)) == source.lines.size()) {
+                    break;
+                }
+
+                Statement statement = source.statements != null ? source.statements[nline] : null;
+                nline++;
+
+                if (guesses != null) {
+                    lineGuesses = guesses.size();
+                }
+
+                if (statement != null && makeMacro == null && reptCount == 0) {
+                    processStatement(statement);
+                } else {
+                    statement = processLine(new Cursor(source.lines.get(nline - 1)), file.getName(), nline);
+
+                    if (source.statements != null) {
+                        source.statements[nline - 1] = statement;
+                    }
+                }
+            }
+
+            nestedIncludes--;
+
+            if (nestedIncludes == 0) {
+                if (ifLevel != 0) {
+                    throwError("Missing ENDIF.", file.getName(), nline);
+                }
+
+                if (reptCount != 0) {
+                    throwError("Missing ENDR.", file.getName(), nline);
+                }
+
+                if (makeMacro != null) {
+                    throwError("Missing ENDM.", file.getName(), nline);
+                }
+
+                if (noOutput) {
+                    throwError("Missing ENDE.", file.getName(), nline);
+                }
+            }
+        } catch (IOException e) {
+            throwError("Can't open or read file - " + e.getMessage(), file.getName(), nline);
+        } catch (Exception e) {
+            throwError(e, file.getName(), nline);
+        }
+    }
+
+    private int skipLines(SourceFile source, int nline) {
+        synchronized (source) {
+            if (source.skipTo == null) {
+                indexSkips(source);
+            }
+        }
+
+        while (nline < source.lines.size()) {
+            nline = source.skipTo[nline];
+            String name = nline < source.lines.size() ? source.skipLabels[nline] : null;
+
+            if (name == null) {
+                break;
+            }
+
+            Label label = findLabel(name);
+
+            if (label != null && label.type == Label.Type.EQUATE) {
+                break;
+            }
+
+            nline++;
+        }
+
+        return nline;
+    }
+
+    // A label followed by a reserved word is recorded with the line, since an EQU of that name could expand
+    // into a conditional.
+    private void indexSkips(SourceFile source) {
+        int size = source.lines.size();
+        int[] skipTo = new int[size + 1];
+        String[] skipLabels = new String[size];
+        skipTo[size] = size;
+
+        for (int i = size - 1; i >= 0; i--) {
+            Cursor s = new Cursor(source.lines.get(i));
+            eatLeading(s, whiteSpaceChars);
+
+            boolean skip = s.length() == 0 || s.charAt(0) == ';';
+
+            if (!skip) {
+                Cursor name = new Cursor();
+                getWord(new Cursor(s), name, true);
+                Label label = getReserved(s);
 
-                needAnotherPass = false;
-                skipLine[0] = false;
-                scope = 1;
-                nextScope = 2;
-                defaultFiller = DEFAULTFILLER;
-                firstLabel.value = NOORIGIN;
-                currLabel = lastLabel;
+                if (label != null) {
+                    skip = !isConditional(label);
+                } else if (isIdentifier(name)) {
+                    label = getReserved(s);
 
-                include(null, new StringBuilder(inputFileName));
-            }
-            while (!lastChance && needAnotherPass);
-        } catch (Asm8Exception e) {
-            try {
-                if (outputStream != null) {
-                    outputStream.close();
+                    if (label != null && !isConditional(label)) {
+                        skipLabels[i] = name.toString();
+                    }
                 }
-
-                deleteIfExists(Paths.get(outputFileName));
-            } catch (IOException ignored) {
             }
 
-            throw e;
+            skipTo[i] = skip ? skipTo[i + 1] : i;
         }
 
-        if (outputStream != null) {
-            try {
-                outputStream.flush();
-                outputStream.close();
-
-                if (verbose) {
-                    System.out.printf("%s written (%d bytes).\n", outputFileName, new File(outputFileName).length());
-                }
-            } catch (IOException e) {
-                throw new Asm8Exception("Write error.");
-            }
-        }
-    }
-
-    private void initLabels() {
-        BiConsumer<Label, StringBuilder> opcode = (o, o2) -> opcode(o, o2);
-        labelMap.computeIfAbsent("BRK", s -> new ArrayList<>()).add(new Label("BRK",
-                                                                              opcode,
-                                                                              opMap(0x00, OpType.IMM, 0x00, OpType.ZP, 0x00, OpType.IMP),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("PHP", s -> new ArrayList<>()).add(new Label("PHP", opcode, opMap(0x08, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BPL", s -> new ArrayList<>()).add(new Label("BPL", opcode, opMap(0x10, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CLC", s -> new ArrayList<>()).add(new Label("CLC", opcode, opMap(0x18, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("JSR", s -> new ArrayList<>()).add(new Label("JSR", opcode, opMap(0x20, OpType.ABS), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BIT", s -> new ArrayList<>()).add(new Label("BIT", opcode, opMap(0x24, OpType.ZP, 0x2c, OpType.ABS), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("PLP", s -> new ArrayList<>()).add(new Label("PLP", opcode, opMap(0x28, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BMI", s -> new ArrayList<>()).add(new Label("BMI", opcode, opMap(0x30, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("SEC", s -> new ArrayList<>()).add(new Label("SEC", opcode, opMap(0x38, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("RTI", s -> new ArrayList<>()).add(new Label("RTI", opcode, opMap(0x40, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("PHA", s -> new ArrayList<>()).add(new Label("PHA", opcode, opMap(0x48, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("JMP", s -> new ArrayList<>()).add(new Label("JMP", opcode, opMap(0x6c, OpType.IND, 0x4c, OpType.ABS), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BVC", s -> new ArrayList<>()).add(new Label("BVC", opcode, opMap(0x50, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CLI", s -> new ArrayList<>()).add(new Label("CLI", opcode, opMap(0x58, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("RTS", s -> new ArrayList<>()).add(new Label("RTS", opcode, opMap(0x60, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("PLA", s -> new ArrayList<>()).add(new Label("PLA", opcode, opMap(0x68, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BVS", s -> new ArrayList<>()).add(new Label("BVS", opcode, opMap(0x70, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("SEI", s -> new ArrayList<>()).add(new Label("SEI", opcode, opMap(0x78, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("STY", s -> new ArrayList<>()).add(new Label("STY",
-                                                                              opcode,
-                                                                              opMap(0x94, OpType.ZPX, 0x84, OpType.ZP, 0x8c, OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("STX", s -> new ArrayList<>()).add(new Label("STX",
-                                                                              opcode,
-                                                                              opMap(0x96, OpType.ZPY, 0x86, OpType.ZP, 0x8e, OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DEY", s -> new ArrayList<>()).add(new Label("DEY", opcode, opMap(0x88, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("TXA", s -> new ArrayList<>()).add(new Label("TXA", opcode, opMap(0x8a, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BCC", s -> new ArrayList<>()).add(new Label("BCC", opcode, opMap(0x90, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("TYA", s -> new ArrayList<>()).add(new Label("TYA", opcode, opMap(0x98, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("TXS", s -> new ArrayList<>()).add(new Label("TXS", opcode, opMap(0x9a, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("TAY", s -> new ArrayList<>()).add(new Label("TAY", opcode, opMap(0xa8, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("TAX", s -> new ArrayList<>()).add(new Label("TAX", opcode, opMap(0xaa, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BCS", s -> new ArrayList<>()).add(new Label("BCS", opcode, opMap(0xb0, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CLV", s -> new ArrayList<>()).add(new Label("CLV", opcode, opMap(0xb8, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("TSX", s -> new ArrayList<>()).add(new Label("TSX", opcode, opMap(0xba, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CPY", s -> new ArrayList<>()).add(new Label("CPY",
-                                                                              opcode,
-                                                                              opMap(0xc0, OpType.IMM, 0xc4, OpType.ZP, 0xcc, OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DEC", s -> new ArrayList<>()).add(new Label("DEC",
-                                                                              opcode,
-                                                                              opMap(0xd6, OpType.ZPX, 0xde, OpType.ABSX, 0xc6, OpType.ZP, 0xce, OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("INY", s -> new ArrayList<>()).add(new Label("INY", opcode, opMap(0xc8, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DEX", s -> new ArrayList<>()).add(new Label("DEX", opcode, opMap(0xca, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BNE", s -> new ArrayList<>()).add(new Label("BNE", opcode, opMap(0xd0, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CLD", s -> new ArrayList<>()).add(new Label("CLD", opcode, opMap(0xd8, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CPX", s -> new ArrayList<>()).add(new Label("CPX",
-                                                                              opcode,
-                                                                              opMap(0xe0, OpType.IMM, 0xe4, OpType.ZP, 0xec, OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("INC", s -> new ArrayList<>()).add(new Label("INC",
-                                                                              opcode,
-                                                                              opMap(0xf6, OpType.ZPX, 0xfe, OpType.ABSX, 0xe6, OpType.ZP, 0xee, OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("INX", s -> new ArrayList<>()).add(new Label("INX", opcode, opMap(0xe8, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("NOP", s -> new ArrayList<>()).add(new Label("NOP", opcode, opMap(0xea, OpType.IMP), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BEQ", s -> new ArrayList<>()).add(new Label("BEQ", opcode, opMap(0xf0, OpType.REL), Label.Type.RESERVED));
-        labelMap.computeIfAbsent("LDY", s -> new ArrayList<>()).add(new Label("LDY",
-                                                                              opcode,
-                                                                              opMap(0xa0,
-                                                                                    OpType.IMM,
-                                                                                    0xb4,
-                                                                                    OpType.ZPX,
-                                                                                    0xbc,
-                                                                                    OpType.ABSX,
-                                                                                    0xa4,
-                                                                                    OpType.ZP,
-                                                                                    0xac,
-                                                                                    OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        labelMap.computeIfAbsent("LDX", s -> new ArrayList<>()).add(new Label("LDX",
-                                                                              opcode,
-                                                                              opMap(0xa2,
-                                                                                    OpType.IMM,
-                                                                                    0xb6,
-                                                                                    OpType.ZPY,
-                                                                                    0xbe,
-                                                                                    OpType.ABSY,
-                                                                                    0xa6,
-                                                                                    OpType.ZP,
-                                                                                    0xae,
-                                                                                    OpType.ABS),
-                                                                              Label.Type.RESERVED));
-        Map<OpType, Byte> oraMap = opMap(0x09,
-                                         OpType.IMM,
-                                         0x01,
-                                         OpType.INDX,
-                                         0x11,
-                                         OpType.INDY,
-                                         0x15,
-                                         OpType.ZPX,
-                                         0x1d,
-                                         OpType.ABSX,
-                                         0x19,
-                                         OpType.ABSY,
-                                         0x05,
-                                         OpType.ZP,
-                                         0x0d,
-                                         OpType.ABS);
-        Map<OpType, Byte> aslMap = opMap(0x0a, OpType.ACC, 0x16, OpType.ZPX, 0x1e, OpType.ABSX, 0x06, OpType.ZP, 0x0e, OpType.ABS, 0x0a, OpType.IMP);
-        Map<OpType, Byte> andMap = opMap(0x29,
-                                         OpType.IMM,
-                                         0x21,
-                                         OpType.INDX,
-                                         0x31,
-                                         OpType.INDY,
-                                         0x35,
-                                         OpType.ZPX,
-                                         0x3d,
-                                         OpType.ABSX,
-                                         0x39,
-                                         OpType.ABSY,
-                                         0x25,
-                                         OpType.ZP,
-                                         0x2d,
-                                         OpType.ABS);
-        Map<OpType, Byte> rolMap = opMap(0x2a, OpType.ACC, 0x36, OpType.ZPX, 0x3e, OpType.ABSX, 0x26, OpType.ZP, 0x2e, OpType.ABS, 0x2a, OpType.IMP);
-        Map<OpType, Byte> eorMap = opMap(0x49,
-                                         OpType.IMM,
-                                         0x41,
-                                         OpType.INDX,
-                                         0x51,
-                                         OpType.INDY,
-                                         0x55,
-                                         OpType.ZPX,
-                                         0x5d,
-                                         OpType.ABSX,
-                                         0x59,
-                                         OpType.ABSY,
-                                         0x45,
-                                         OpType.ZP,
-                                         0x4d,
-                                         OpType.ABS);
-        Map<OpType, Byte> lsrMap = opMap(0x4a, OpType.ACC, 0x56, OpType.ZPX, 0x5e, OpType.ABSX, 0x46, OpType.ZP, 0x4e, OpType.ABS, 0x4a, OpType.IMP);
-        Map<OpType, Byte> adcMap = opMap(0x69,
-                                         OpType.IMM,
-                                         0x61,
-                                         OpType.INDX,
-                                         0x71,
-                                         OpType.INDY,
-                                         0x75,
-                                         OpType.ZPX,
-                                         0x7d,
-                                         OpType.ABSX,
-                                         0x79,
-                                         OpType.ABSY,
-                                         0x65,
-                                         OpType.ZP,
-                                         0x6d,
-                                         OpType.ABS);
-        Map<OpType, Byte> rorMap = opMap(0x6a, OpType.ACC, 0x76, OpType.ZPX, 0x7e, OpType.ABSX, 0x66, OpType.ZP, 0x6e, OpType.ABS, 0x6a, OpType.IMP);
-        Map<OpType, Byte> staMap = opMap(0x81, OpType.INDX, 0x91, OpType.INDY, 0x95, OpType.ZPX, 0x9d, OpType.ABSX, 0x99, OpType.ABSY, 0x85, OpType.ZP, 0x8d, OpType.ABS);
-        Map<OpType, Byte> ldaMap = opMap(0xa9,
-                                         OpType.IMM,
-                                         0xa1,
-                                         OpType.INDX,
-                                         0xb1,
-                                         OpType.INDY,
-                                         0xb5,
-                                         OpType.ZPX,
-                                         0xbd,
-                                         OpType.ABSX,
-                                         0xb9,
-                                         OpType.ABSY,
-                                         0xa5,
-                                         OpType.ZP,
-                                         0xad,
-                                         OpType.ABS);
-        Map<OpType, Byte> cmpMap = opMap(0xc9,
-                                         OpType.IMM,
-                                         0xc1,
-                                         OpType.INDX,
-                                         0xd1,
-                                         OpType.INDY,
-                                         0xd5,
-                                         OpType.ZPX,
-                                         0xdd,
-                                         OpType.ABSX,
-                                         0xd9,
-                                         OpType.ABSY,
-                                         0xc5,
-                                         OpType.ZP,
-                                         0xcd,
-                                         OpType.ABS);
-        Map<OpType, Byte> sbcMap = opMap(0xe9,
-                                         OpType.IMM,
-                                         0xe1,
-                                         OpType.INDX,
-                                         0xf1,
-                                         OpType.INDY,
-                                         0xf5,
-                                         OpType.ZPX,
-                                         0xfd,
-                                         OpType.ABSX,
-                                         0xf9,
-                                         OpType.ABSY,
-                                         0xe5,
-                                         OpType.ZP,
-                                         0xed,
-                                         OpType.ABS);
-        labelMap.computeIfAbsent("ORA", s -> new ArrayList<>()).add(new Label("ORA", opcode, oraMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ASL", s -> new ArrayList<>()).add(new Label("ASL", opcode, aslMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("AND", s -> new ArrayList<>()).add(new Label("AND", opcode, andMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ROL", s -> new ArrayList<>()).add(new Label("ROL", opcode, rolMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("EOR", s -> new ArrayList<>()).add(new Label("EOR", opcode, eorMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("LSR", s -> new ArrayList<>()).add(new Label("LSR", opcode, lsrMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ADC", s -> new ArrayList<>()).add(new Label("ADC", opcode, adcMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ROR", s -> new ArrayList<>()).add(new Label("ROR", opcode, rorMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("STA", s -> new ArrayList<>()).add(new Label("STA", opcode, staMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("LDA", s -> new ArrayList<>()).add(new Label("LDA", opcode, ldaMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("CMP", s -> new ArrayList<>()).add(new Label("CMP", opcode, cmpMap, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("SBC", s -> new ArrayList<>()).add(new Label("SBC", opcode, sbcMap, Label.Type.RESERVED));
-
-        labelMap.computeIfAbsent("", s -> new ArrayList<>()).add(new Label("", directiveNothing, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("IF", s -> new ArrayList<>()).add(new Label("IF", directiveIf, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ELSEIF", s -> new ArrayList<>()).add(new Label("ELSEIF", directiveElseIf, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ELSE", s -> new ArrayList<>()).add(new Label("ELSE", directiveElse, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ENDIF", s -> new ArrayList<>()).add(new Label("ENDIF", directiveEndIf, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("IFDEF", s -> new ArrayList<>()).add(new Label("IFDEF", directiveIfDef, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("IFNDEF", s -> new ArrayList<>()).add(new Label("IFNDEF", directiveIfNDef, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("=", s -> new ArrayList<>()).add(new Label("=", directiveEqual, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("EQU", s -> new ArrayList<>()).add(new Label("EQU", directiveEqu, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ORG", s -> new ArrayList<>()).add(new Label("ORG", directiveOrg, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BASE", s -> new ArrayList<>()).add(new Label("BASE", directiveBase, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("PAD", s -> new ArrayList<>()).add(new Label("PAD", directivePad, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("INCLUDE", s -> new ArrayList<>()).add(new Label("INCLUDE", directiveInclude, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("INCSRC", s -> new ArrayList<>()).add(new Label("INCSRC", directiveInclude, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("INCBIN", s -> new ArrayList<>()).add(new Label("INCBIN", directiveIncBin, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BIN", s -> new ArrayList<>()).add(new Label("BIN", directiveIncBin, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("HEX", s -> new ArrayList<>()).add(new Label("HEX", directiveHex, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("WORD", s -> new ArrayList<>()).add(new Label("WORD", directiveDw, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DW", s -> new ArrayList<>()).add(new Label("DW", directiveDw, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DCW", s -> new ArrayList<>()).add(new Label("DCW", directiveDw, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DC.W", s -> new ArrayList<>()).add(new Label("DC.W", directiveDw, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("BYTE", s -> new ArrayList<>()).add(new Label("BYTE", directiveDb, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DB", s -> new ArrayList<>()).add(new Label("DB", directiveDb, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DCB", s -> new ArrayList<>()).add(new Label("DCB", directiveDb, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DC.B", s -> new ArrayList<>()).add(new Label("DC.B", directiveDb, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DSW", s -> new ArrayList<>()).add(new Label("DSW", directiveDsw, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DS.W", s -> new ArrayList<>()).add(new Label("DS.W", directiveDsw, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DSB", s -> new ArrayList<>()).add(new Label("DSB", directiveDsb, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DS.B", s -> new ArrayList<>()).add(new Label("DS.B", directiveDsb, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ALIGN", s -> new ArrayList<>()).add(new Label("ALIGN", directiveAlign, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("MACRO", s -> new ArrayList<>()).add(new Label("MACRO", directiveMacro, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("REPT", s -> new ArrayList<>()).add(new Label("REPT", directiveRept, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ENDM", s -> new ArrayList<>()).add(new Label("ENDM", directiveEndM, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ENDR", s -> new ArrayList<>()).add(new Label("ENDR", directiveEndR, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ENUM", s -> new ArrayList<>()).add(new Label("ENUM", directiveEnum, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ENDE", s -> new ArrayList<>()).add(new Label("ENDE", directiveEndE, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("FILLVALUE", s -> new ArrayList<>()).add(new Label("FILLVALUE", directiveFillValue, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DL", s -> new ArrayList<>()).add(new Label("DL", directiveDl, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("DH", s -> new ArrayList<>()).add(new Label("DH", directiveDh, Label.Type.RESERVED));
-        labelMap.computeIfAbsent("ERROR", s -> new ArrayList<>()).add(new Label("ERROR", directiveError, Label.Type.RESERVED));
+        source.skipLabels = skipLabels;
+        source.skipTo = skipTo;
     }
 
-    private void processFile(File file) {
-        int nline = 0;
-        nestedIncludes++;
+    private static boolean isIdentifier(CharSequence word) {
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
 
-        try {
-            for (String line : Files.readAllLines(file.toPath())) {
-                processLine(new StringBuilder(line), file.getName(), ++nline);
+            if (!(c == '_' || c == '.' || c == LOCALCHAR || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (i > 0 && c >= '0' && c <= '9'))) {
+                return false;
             }
+        }
 
-            nestedIncludes--;
+        return word.length() > 0;
+    }
 
-            if (nestedIncludes == 0) {
-                if (ifLevel != 0) {
-                    throwError("Missing ENDIF.", file.getName(), nline);
-                }
+    private SourceFile readSource(File file) throws IOException {
+        if (standardInput != null && nestedIncludes == 1 && file.getPath().equals(STDIN)) {
+            return standardInput;
+        }
 
-                if (reptCount != 0) {
-                    throwError("Missing ENDR.", file.getName(), nline);
-                }
+        byte[] virtual = virtualFiles.get(virtualPath(file.getPath()));
+        String path = virtual != null ? virtualPath(file.getPath()) : file.getCanonicalPath();
+        long modified = virtual != null ? 0 : file.lastModified();
+        SourceFile source = sourceCache.get(path);
 
-                if (makeMacro != null) {
-                    throwError("Missing ENDM.", file.getName(), nline);
-                }
+        if (virtual == null && dependencies != null) {
+            dependencies.putIfAbsent(Paths.get(path), modified);
+        }
 
-                if (noOutput) {
-                    throwError("Missing ENDE.", file.getName(), nline);
-                }
-            }
-        } catch (IOException e) {
-            throwError("Can't open or read file - " + e.getMessage(), file.getName(), nline);
-        } catch (Exception e) {
-            throwError(e, file.getName(), nline);
+        if (source == null || source.modified != modified) {
+            List<String> lines = virtual != null
+                                 ? new BufferedReader(new InputStreamReader(new ByteArrayInputStream(virtual), StandardCharsets.UTF_8)).lines().collect(Collectors.toList())
+                                 : Files.readAllLines(file.toPath());
+            source = new SourceFile(modified, lines);
+            sourceCache.put(path, source);
         }
+
+        return source;
+    }
+
+    private static String virtualPath(String name) {
+        return Paths.get(name).normalize().toString();
     }
 
-    @SuppressWarnings("unchecked")
-    private void processLine(StringBuilder src, String filename, int nline) {
-        StringBuilder line = new StringBuilder();
+    private Statement processLine(Cursor src, String filename, int nline) {
+        Cursor line = new Cursor();
+        equated = false;
         String comment = expandLine(src, line);
 
         if (insideMacro == 0 || verboseListing) {
             listLine(line.toString(), comment);
         }
 
-        StringBuilder s = new StringBuilder(line.toString());
+        Cursor s = new Cursor(line);
 
         if (makeMacro != null) {
 
@@ -677,40 +2796,74 @@ public class Asm8 {
         }
 
         labelHere = null;
-        StringBuilder s2 = new StringBuilder(s);
-        Label label;
-
-        try {
-            label = getReserved(s);
-        } catch (Asm8Exception ignored) {
-            label = null;
-        }
+        Cursor s2 = new Cursor(s);
+        Label label = getReserved(s);
+        boolean skipped = skipLine[ifLevel];
 
-        if (skipLine[ifLevel]) {
-            if (label == null) {
-                label = getReserved(s);
+        if (skipped) {
+            if (label == null && (label = getReserved(s)) == null) {
+                throw new IllegalException();
             }
 
-            if (label == null
-                    || (!label.value.equals(directiveElse) && !label.value.equals(directiveElseIf) && !label.value.equals(directiveEndIf)
-                    && !label.value.equals(directiveIf) && !label.value.equals(directiveIfDef) && !label.value.equals(directiveIfNDef))) {
-                return;
+            if (!isConditional(label)) {
+                return null;
             }
         }
 
+        String name = null;
+
         if (label == null) {
-            addLabel(getLabel(s2), insideMacro != 0);
+            name = getLabel(s2);
+            addLabel(name, insideMacro != 0);
             label = getReserved(s);
+
+            if (label == null) {
+                throw new IllegalException();
+            }
         }
 
+        Statement statement = null;
+
         if (label != null) {
             if (label.type == Label.Type.MACRO) {
                 expandMarco(label, s, nline, filename);
             } else {
-                ((BiConsumer<Label, StringBuilder>) label.value).accept(label, s);
+                //a skipped line isn't parsed for its label, so it's parsed again when it isn't skipped
+                if (!skipped && !equated && makeMacro == null && reptCount == 0) {
+                    statement = new Statement(name, label, s.toString(), line.toString(), comment);
+                }
+
+                ((Directive) label.value).accept(this, label, s);
+            }
+        }
+
+        eatLeading(s, whiteSpaceChars);
+
+        if (s.length() > 0) {
+            throw new Asm8Exception("Extra characters on line.");
+        }
+
+        return statement;
+    }
+
+    private void processStatement(Statement statement) {
+        if (insideMacro == 0 || verboseListing) {
+            listLine(statement.line, statement.comment);
+        }
+
+        labelHere = null;
+
+        if (skipLine[ifLevel]) {
+            if (!isConditional(statement.directive)) {
+                return;
             }
+        } else if (statement.label != null) {
+            addLabel(statement.label, insideMacro != 0);
         }
 
+        Cursor s = new Cursor(statement.operand);
+        ((Directive) statement.directive.value).accept(this, statement.directive, s);
+
         eatLeading(s, whiteSpaceChars);
 
         if (s.length() > 0) {
@@ -718,11 +2871,17 @@ public class Asm8 {
         }
     }
 
-    private String expandLine(StringBuilder src, StringBuilder dst) {
+    private boolean isConditional(Label label) {
+        return label != null
+                && (label.value.equals(directiveElse) || label.value.equals(directiveElseIf) || label.value.equals(directiveEndIf)
+                || label.value.equals(directiveIf) || label.value.equals(directiveIfDef) || label.value.equals(directiveIfNDef));
+    }
+
+    private String expandLine(Cursor src, Cursor dst) {
         char c;
         char c2;
         boolean skipDef = false;
-        StringBuilder start;
+        Cursor start;
         String comment = null;
 
         do {
@@ -759,7 +2918,7 @@ public class Asm8 {
                 }
                 while (c2 != 0 && c2 != c);
             } else if (c == '_' || c == '.' || c == LOCALCHAR || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) {
-                start = new StringBuilder();
+                start = new Cursor();
 
                 do {
                     start.append(c);
@@ -772,15 +2931,19 @@ public class Asm8 {
                 Label label = null;
 
                 if (!skipDef) {
-                    String directive = start.toString().startsWith(".") ? start.substring(1) : start.toString();
+                    int from = start.charAt(0) == '.' ? 1 : 0;
 
-                    if ("IFDEF".equalsIgnoreCase(directive) || "IFNDEF".equalsIgnoreCase(directive)) {
+                    if (equalsIgnoreCase(start, from, "IFDEF") || equalsIgnoreCase(start, from, "IFNDEF")) {
                         skipDef = true;
                     } else {
-                        label = findLabel(start.toString());
+                        label = findLabel(start);
                     }
                 }
 
+                if (label != null && label.type == Label.Type.EQUATE) {
+                    equated = true;
+                }
+
                 if (label != null) {
                     if (label.type != Asm8.Label.Type.EQUATE || label.pass != pass) {
                         label = null;
@@ -791,7 +2954,7 @@ public class Asm8 {
 
                 if (label != null) {
                     label.used = true;
-                    expandLine(new StringBuilder((String) label.line), dst);
+                    expandLine(new Cursor((String) label.line), dst);
                     label.used = false;
                 } else {
                     dst.append(start);
@@ -814,38 +2977,55 @@ public class Asm8 {
         return comment;
     }
 
+    private static boolean equalsIgnoreCase(CharSequence src, int from, String word) {
+        if (src.length() - from != word.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toUpperCase(src.charAt(from + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     private void listLine(String src, String comment) {
 
     }
 
-    private Label findLabel(String name) {
-        List<Label> labelList = labelMap.get(name);
+    private Label findLabel(CharSequence name) {
+        return findLabel(name, scope);
+    }
 
-        if (labelList == null) {
-            return null;
-        }
+    private Label findLabel(CharSequence name, int scope) {
+        int id = symbols.find(name);
 
-        boolean nonFwdLabel = !name.startsWith("+");
+        if (id < 0) {
+            return findReserved(name);
+        }
 
-        Label local = labelList.stream()
-                .filter(label -> nonFwdLabel || label.pass != pass)
-                .filter(label -> label.scope == scope)
-                .findFirst()
-                .orElse(null);
+        boolean nonFwdLabel = name.charAt(0) != '+';
+        Label local = symbols.first(id, scope, nonFwdLabel ? -1 : pass);
 
         if (local != null) {
             return local;
         }
 
-        return labelList.stream()
-                .filter(label -> nonFwdLabel || label.pass != pass)
-                .filter(label -> label.scope == 0)
-                .reduce((label, label2) -> label2)
-                .orElse(null);
+        Label global = nonFwdLabel ? symbols.last(id, 0, -1) : symbols.forward(id, pass);
+
+        return global != null ? global : findReserved(name);
+    }
+
+    private Label findReserved(CharSequence name) {
+        Label label = reservedWords.get(name);
+
+        return label != null && label.name.contentEquals(name) ? label : null;
     }
 
-    private String getLabel(StringBuilder src) {
-        StringBuilder dst = new StringBuilder();
+    private String getLabel(Cursor src) {
+        Cursor dst = new Cursor();
 
         getWord(src, dst, true);
 
@@ -853,15 +3033,15 @@ public class Asm8 {
             return dst.toString();
         }
 
-        StringBuilder s = new StringBuilder(dst);
+        Cursor s = new Cursor(dst);
         char c = s.charAt(0);
 
         if (c == '+' || c == '-') {
-            try {
-                do {
-                    s.deleteCharAt(0);
-                } while (s.charAt(0) == c);
-            } catch (StringIndexOutOfBoundsException e) {
+            do {
+                s.deleteCharAt(0);
+            } while (s.length() > 0 && s.charAt(0) == c);
+
+            if (s.length() == 0) {
                 return dst.toString();
             }
         }
@@ -900,7 +3080,8 @@ public class Asm8 {
                 labelHere.scope = 0;
             }
 
-            labelMap.computeIfAbsent(word, s -> new ArrayList<>()).add(0, labelHere);
+            symbols.add(labelHere);
+            labelCount++;
 
             lastLabel = labelHere;
         } else {
@@ -933,14 +3114,13 @@ public class Asm8 {
         }
     }
 
-    private Label getReserved(StringBuilder src) {
-        StringBuilder dst = new StringBuilder();
-        String upp;
+    private Label getReserved(Cursor src) {
+        Cursor dst = new Cursor();
 
         eatLeading(src, whiteSpaceChars);
 
         if (src.length() > 0 && src.charAt(0) == '=') {
-            upp = "=";
+            dst.append('=');
             src.deleteCharAt(0);
         } else {
             if (src.length() > 0 && src.charAt(0) == '.') {
@@ -948,56 +3128,51 @@ public class Asm8 {
             }
 
             getWord(src, dst, true);
-            upp = dst.toString().toUpperCase();
         }
 
-        Label label = findLabel(upp);
+        return reservedWords.get(dst);
+    }
 
-        if (label == null) {
-            label = findLabel(dst.toString());
-        }
+    private void getWord(Cursor src, Cursor dst, boolean mcheck) {
+        eatLeading(src, whiteSpaceChars);
 
-        if (label != null) {
-            if ((label.type == Label.Type.MACRO && label.pass != pass) || label.type != Label.Type.RESERVED) {
-                label = null;
-            }
-        }
+        int end = 0;
 
-        if (label == null) {
-            throw new IllegalException();
+        while (end < src.length() && !isChar(src.charAt(end), separatorChars)) {
+            end++;
         }
 
-        return label;
-    }
-
-    private void getWord(StringBuilder src, StringBuilder dst, boolean mcheck) {
-        eatLeading(src, whiteSpaceChars);
+        if (mcheck) {
+            for (int i = 1; i < end; i++) {
+                char sep = src.charAt(i);
 
-        dst.setLength(0);
-        dst.append(whiteSpaceRegex.split(src)[0]);
+                if (isChar(sep, mathChars)) {
+                    int j = 0;
 
-        if (mcheck) {
-            String split = mathRegex.split(dst)[0];
+                    while (j < i && src.charAt(j) == sep) {
+                        j++;
+                    }
 
-            if (split.length() < dst.length()) {
-                char sep = dst.charAt(split.length());
+                    if (j < i) {
+                        end = i;
+                    }
 
-                if (!split.chars().allMatch(it -> it == sep)) {
-                    dst.setLength(0);
-                    dst.append(split);
+                    break;
                 }
             }
         }
 
-        src.delete(0, dst.length());
+        dst.setLength(0);
+        dst.append(src, 0, end);
+        src.delete(0, end);
 
         if (src.length() > 0 && src.charAt(0) == ':') {
             src.deleteCharAt(0);
         }
     }
 
-    private int getValue(StringBuilder str) {
-        StringBuilder gvline = new StringBuilder();
+    private int getValue(Cursor str, boolean probe) {
+        Cursor gvline = new Cursor();
 
         getWord(str, gvline, true);
 
@@ -1005,19 +3180,28 @@ public class Asm8 {
             throw new MissingOperandException();
         }
 
-        StringBuilder s = new StringBuilder(gvline);
+        char c = gvline.charAt(0);
+
+        if (c == '$' && gvline.length() == 1) {
+            return programCounter();
+        } else if (isLiteral(c)) {
+            return getLiteral(gvline);
+        } else {
+            return labelValue(gvline, probe);
+        }
+    }
+
+    private static boolean isLiteral(char c) {
+        return c == '$' || c == '%' || c == '\'' || c == '"' || (c >= '0' && c <= '9');
+    }
 
+    private int getLiteral(Cursor s) {
         int ret = 0;
-        char c = s.length() > 0 ? s.charAt(0) : 0;
+        char c = s.charAt(0);
 
         if (c == '$') {
             s.deleteCharAt(0);
-
-            if (s.length() == 0) {
-                ret = (int) firstLabel.value;
-            } else {
-                ret = getHexValue(s, ret);
-            }
+            ret = getHexValue(s, ret);
         } else if (c == '%') {
             s.deleteCharAt(0);
             ret = getBinValue(s, ret);
@@ -1040,10 +3224,12 @@ public class Asm8 {
             if (s.deleteCharAt(0).charAt(0) != '"') {
                 throw new NotANumberException();
             }
-        } else if (s.charAt(0) >= '0' && s.charAt(0) <= '9') {
-            try {
-                ret = Integer.parseInt(s.toString());
-            } catch (NumberFormatException e) {
+        } else {
+            long dec = getDecValue(s);
+
+            if (dec >= 0) {
+                ret = (int) dec;
+            } else {
                 char end = s.charAt(s.length() - 1);
 
                 if (end == 'b' || end == 'B') {
@@ -1054,34 +3240,55 @@ public class Asm8 {
                     throw new NotANumberException();
                 }
             }
-        } else {
-            Label label = findLabel(gvline.toString());
+        }
 
-            if (label == null) {
-                needAnotherPass = true;
-                dependant = 1;
+        return ret;
+    }
 
-                if (lastChance) {
-                    throw new UnknownLabelException();
-                }
-            } else {
-                dependant |= (label.line == null ? 1 : 0);
-                needAnotherPass |= (label.line == null);
+    private int programCounter() {
+        if (assumed != null && !noOutput) {
+            readsProgramCounter = true;
+        }
 
-                if (label.type == Label.Type.LABEL || label.type == Label.Type.VALUE) {
-                    ret = (int) label.value;
-                } else if (label.type == Label.Type.MACRO) {
-                    throw new Asm8Exception("Can't use macro in expression.");
-                } else {
-                    throw new UnknownLabelException();
-                }
+        return (int) firstLabel.value;
+    }
+
+    // When probing, an unresolved label reads as 0 instead of failing the last pass.
+    private int labelValue(CharSequence name, boolean probe) {
+        Label label = findLabel(name);
+
+        if (label == null) {
+            Integer guess = guess(name);
+
+            if (guess != null) {
+                return guess;
+            }
+
+            needAnotherPass = true;
+            dependant = 1;
+
+            if (lastChance && !probe) {
+                throw new UnknownLabelException();
             }
+
+            return 0;
         }
 
-        return ret;
+        dependant |= (label.line == null ? 1 : 0);
+        needAnotherPass |= (label.line == null);
+
+        if (label.type == Label.Type.LABEL || label.type == Label.Type.VALUE) {
+            return (int) label.value;
+        } else if (label.type == Label.Type.MACRO) {
+            throw new Asm8Exception("Can't use macro in expression.");
+        } else if (probe) {
+            return 0;
+        } else {
+            throw new UnknownLabelException();
+        }
     }
 
-    private int getHexValue(StringBuilder s, int ret) {
+    private int getHexValue(Cursor s, int ret) {
         int chars = 0;
 
         do {
@@ -1098,7 +3305,21 @@ public class Asm8 {
         return ret;
     }
 
-    private int getBinValue(StringBuilder s, int ret) {
+    private static long getDecValue(CharSequence s) {
+        long ret = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            int digit = Character.digit(s.charAt(i), 10);
+
+            if (digit < 0 || (ret = ret * 10 + digit) > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+
+        return ret;
+    }
+
+    private int getBinValue(Cursor s, int ret) {
         int chars = 0;
 
         do {
@@ -1121,7 +3342,7 @@ public class Asm8 {
         return ret;
     }
 
-    private Operator getOperator(StringBuilder str) {
+    private Operator getOperator(Cursor str) {
         eatLeading(str, whiteSpaceChars);
 
         if (str.length() > 0) {
@@ -1199,25 +3420,242 @@ public class Asm8 {
             }
         }
 
-        return Operator.NOOP;
+        return Operator.NOOP;
+    }
+
+    private void expandMarco(Label id, Cursor next, int nline, String src) {
+
+    }
+
+    private int eval(Cursor str, Operator.Precedence precedence) {
+        Compiled compiled = precedence == Operator.Precedence.WHOLEEXP ? getCompiled(str) : null;
+
+        if (compiled == null || compiled.expr == null) {
+            return interpret(str, precedence);
+        }
+
+        int ret = compiled.expr.eval(this);
+        str.delete(0, compiled.end);
+
+        return ret;
+    }
+
+    private Compiled getCompiled(Cursor str) {
+        int comma = str.indexOf(",");
+        List<Compiled> bucket = expressions.get(expressionKey.set(str, comma < 0 ? str.length() : comma));
+
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            expressions.put(comma < 0 ? str.toString() : str.substring(0, comma), bucket);
+        }
+
+        for (Compiled compiled : bucket) {
+            if (compiled.matches(str)) {
+                return compiled;
+            }
+        }
+
+        Compiled compiled = compileExpression(str.toString());
+        bucket.add(compiled);
+
+        return compiled;
+    }
+
+    // The result holds for any text starting with the chars the parser looked at, lookahead included.
+    private Compiled compileExpression(String text) {
+        Cursor s = new Cursor(text);
+        Expr expr;
+
+        try {
+            expr = compile(s, Operator.Precedence.WHOLEEXP);
+        } catch (RuntimeException e) {
+            return new Compiled(text, true, null, 0);
+        }
+
+        int end = text.length() - s.length();
+        int last = end;
+
+        while (last < text.length() && isChar(text.charAt(last), whiteSpaceChars)) {
+            last++;
+        }
+
+        if (last < text.length() && "&|=<>!".indexOf(text.charAt(last)) >= 0) {
+            last++;
+        }
+
+        if (last >= text.length()) {
+            return new Compiled(text, true, expr, end);
+        }
+
+        return new Compiled(text.substring(0, last + 1), false, expr, end);
+    }
+
+    // Mirror of interpret. Throws for anything whose parse depends on the symbol table, left to interpret.
+    private Expr compile(Cursor str, Operator.Precedence precedence) {
+        Expr ret;
+        Operator op;
+
+        Cursor s = new Cursor(str);
+        eatLeading(s, whiteSpaceChars);
+
+        char unary = s.length() > 0 ? s.charAt(0) : 0;
+
+        switch (unary) {
+            case '(':
+                ret = compile(s.deleteCharAt(0), Operator.Precedence.WHOLEEXP);
+
+                eatLeading(s, whiteSpaceChars);
+
+                if (s.length() > 0 && s.charAt(0) == ')') {
+                    s.deleteCharAt(0);
+                } else {
+                    throw new IncompleteException();
+                }
+                break;
+            case '#':
+                ret = compile(s.deleteCharAt(0), Operator.Precedence.WHOLEEXP);
+                break;
+            case '~':
+            case '!':
+            case '<':
+            case '>':
+                ret = UnaryExpr.of(unary, compile(s.deleteCharAt(0), Operator.Precedence.UNARY));
+                break;
+            case '+':
+            case '-':
+                Cursor s2 = new Cursor(s);
+                Cursor name = new Cursor();
+                s.deleteCharAt(0);
+                getWord(s2, name, true);
+
+                if (s2.contentEquals(s)) {
+                    ret = new NamelessRef(name.toString(), null, false);
+                    break;
+                }
+
+                Expr expr = compile(s, Operator.Precedence.UNARY);
+
+                if (!isNamelessLabel(name)) {
+                    ret = unary == '-' ? UnaryExpr.of(unary, expr) : expr;
+                } else if (s2.contentEquals(s)) {
+                    ret = new NamelessRef(name.toString(), expr, unary == '-');
+                } else {
+                    throw new IllegalStateException("Ambiguous nameless label.");
+                }
+                break;
+            default:
+                Cursor gvline = new Cursor();
+                getWord(s, gvline, true);
+
+                if (gvline.length() == 0) {
+                    throw new MissingOperandException();
+                }
+
+                char c = gvline.charAt(0);
+
+                if (c == '$' && gvline.length() == 1) {
+                    ret = new ProgramCounter();
+                } else if (isLiteral(c)) {
+                    ret = new Constant(getLiteral(gvline), false);
+                } else {
+                    ret = new LabelRef(gvline.toString());
+                }
+        }
+
+        do {
+            str.setLength(0);
+            str.append(s);
+            op = getOperator(s);
+
+            if (precedence.compareTo(op.precedence) < 0) {
+                ret = BinaryExpr.of(op, ret, compile(s, op.precedence));
+            }
+        }
+        while (precedence.compareTo(op.precedence) < 0);
+
+        return ret;
+    }
+
+    private static boolean isNamelessLabel(CharSequence name) {
+        char c = name.charAt(0);
+        int i = 0;
+
+        while (i < name.length() && name.charAt(i) == c) {
+            i++;
+        }
+
+        if (i == name.length()) {
+            return true;
+        }
+
+        c = name.charAt(i);
+
+        return c == LOCALCHAR || c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
     }
 
-    private void expandMarco(Label id, StringBuilder next, int nline, String src) {
+    private static int apply(Operator op, int ret, int val2) {
+        switch (op) {
+            case EQUAL:
+                return (ret == val2) ? 1 : 0;
+            case NOTEQUAL:
+                return (ret != val2) ? 1 : 0;
+            case GREATER:
+                return (ret > val2) ? 1 : 0;
+            case GREATEREQ:
+                return (ret >= val2) ? 1 : 0;
+            case LESS:
+                return (ret < val2) ? 1 : 0;
+            case LESSEQ:
+                return (ret <= val2) ? 1 : 0;
+            case PLUS:
+                return ret + val2;
+            case MINUS:
+                return ret - val2;
+            case MUL:
+                return ret * val2;
+            case DIV:
+                if (val2 == 0) {
+                    throw new DivideByZeroException();
+                }
+
+                return ret / val2;
+            case MOD:
+                if (val2 == 0) {
+                    throw new DivideByZeroException();
+                }
 
+                return ret % val2;
+            case AND:
+                return ret & val2;
+            case XOR:
+                return ret ^ val2;
+            case OR:
+                return ret | val2;
+            case ANDAND:
+                return ((ret != 0) && (val2 != 0)) ? 1 : 0;
+            case OROR:
+                return ((ret != 0) || (val2 != 0)) ? 1 : 0;
+            case LEFTSHIFT:
+                return ret << val2;
+            case RIGHTSHIFT:
+                return ret >> val2;
+            default:
+                return ret;
+        }
     }
 
-    private int eval(StringBuilder str, Operator.Precedence precedence) {
+    private int interpret(Cursor str, Operator.Precedence precedence) {
         int ret;
         Operator op;
 
-        StringBuilder s = new StringBuilder(str);
+        Cursor s = new Cursor(str);
         eatLeading(s, whiteSpaceChars);
 
         char unary = s.length() > 0 ? s.charAt(0) : 0;
 
         switch (unary) {
             case '(':
-                ret = eval(s.deleteCharAt(0), Operator.Precedence.WHOLEEXP);
+                ret = interpret(s.deleteCharAt(0), Operator.Precedence.WHOLEEXP);
 
                 eatLeading(s, whiteSpaceChars);
 
@@ -1228,34 +3666,30 @@ public class Asm8 {
                 }
                 break;
             case '#':
-                ret = eval(s.deleteCharAt(0), Operator.Precedence.WHOLEEXP);
+                ret = interpret(s.deleteCharAt(0), Operator.Precedence.WHOLEEXP);
                 break;
             case '~':
-                ret = ~eval(s.deleteCharAt(0), Operator.Precedence.UNARY);
+                ret = ~interpret(s.deleteCharAt(0), Operator.Precedence.UNARY);
                 break;
             case '!':
-                ret = eval(s.deleteCharAt(0), Operator.Precedence.UNARY) == 0 ? 1 : 0;
+                ret = interpret(s.deleteCharAt(0), Operator.Precedence.UNARY) == 0 ? 1 : 0;
                 break;
             case '<':
-                ret = eval(s.deleteCharAt(0), Operator.Precedence.UNARY) & 0xFF;
+                ret = interpret(s.deleteCharAt(0), Operator.Precedence.UNARY) & 0xFF;
                 break;
             case '>':
-                ret = (eval(s.deleteCharAt(0), Operator.Precedence.UNARY) >> 8) & 0xFF;
+                ret = (interpret(s.deleteCharAt(0), Operator.Precedence.UNARY) >> 8) & 0xFF;
                 break;
             case '+':
             case '-':
-                StringBuilder s2 = new StringBuilder(s);
+                Cursor s2 = new Cursor(s);
                 s.deleteCharAt(0);
                 op = Operator.values()[dependant];
                 boolean val2 = needAnotherPass;
                 dependant = 0;
-                try {
-                    ret = getValue(s2);
-                } catch (UnknownLabelException e) {
-                    ret = 0;
-                }
+                ret = getValue(s2, true);
 
-                if (dependant == 0 || s2.toString().equals(s.toString())) {
+                if (dependant == 0 || s2.contentEquals(s)) {
                     s.setLength(0);
                     s.append(s2);
                     s2 = null;
@@ -1266,7 +3700,7 @@ public class Asm8 {
                 }
 
                 if (s2 != null) {
-                    ret = eval(s, Operator.Precedence.UNARY);
+                    ret = interpret(s, Operator.Precedence.UNARY);
 
                     if (unary == '-') {
                         ret = -ret;
@@ -1274,7 +3708,7 @@ public class Asm8 {
                 }
                 break;
             default:
-                ret = getValue(s);
+                ret = getValue(s, false);
         }
 
         do {
@@ -1283,75 +3717,10 @@ public class Asm8 {
             op = getOperator(s);
 
             if (precedence.compareTo(op.precedence) < 0) {
-                int val2 = eval(s, op.precedence);
+                int val2 = interpret(s, op.precedence);
 
                 if (dependant == 0) {
-                    switch (op) {
-                        case NOOP:
-                            break;
-                        case EQUAL:
-                            ret = (ret == val2) ? 1 : 0;
-                            break;
-                        case NOTEQUAL:
-                            ret = (ret != val2) ? 1 : 0;
-                            break;
-                        case GREATER:
-                            ret = (ret > val2) ? 1 : 0;
-                            break;
-                        case GREATEREQ:
-                            ret = (ret >= val2) ? 1 : 0;
-                            break;
-                        case LESS:
-                            ret = (ret < val2) ? 1 : 0;
-                            break;
-                        case LESSEQ:
-                            ret = (ret <= val2) ? 1 : 0;
-                            break;
-                        case PLUS:
-                            ret += val2;
-                            break;
-                        case MINUS:
-                            ret -= val2;
-                            break;
-                        case MUL:
-                            ret *= val2;
-                            break;
-                        case DIV:
-                            if (val2 == 0) {
-                                throw new DivideByZeroException();
-                            }
-
-                            ret /= val2;
-                            break;
-                        case MOD:
-                            if (val2 == 0) {
-                                throw new DivideByZeroException();
-                            }
-
-                            ret %= val2;
-                            break;
-                        case AND:
-                            ret &= val2;
-                            break;
-                        case XOR:
-                            ret ^= val2;
-                            break;
-                        case OR:
-                            ret |= val2;
-                            break;
-                        case ANDAND:
-                            ret = ((ret != 0) && (val2 != 0)) ? 1 : 0;
-                            break;
-                        case OROR:
-                            ret = ((ret != 0) || (val2 != 0)) ? 1 : 0;
-                            break;
-                        case LEFTSHIFT:
-                            ret <<= val2;
-                            break;
-                        case RIGHTSHIFT:
-                            ret >>= val2;
-                            break;
-                    }
+                    ret = apply(op, ret, val2);
                 } else {
                     ret = 0;
                 }
@@ -1362,7 +3731,7 @@ public class Asm8 {
         return ret;
     }
 
-    private boolean eatChar(StringBuilder str, char c) {
+    private boolean eatChar(Cursor str, char c) {
         if (c != 0) {
             eatLeading(str, whiteSpaceChars);
 
@@ -1376,18 +3745,44 @@ public class Asm8 {
         return true;
     }
 
-    private void eatLeading(StringBuilder src, List<Character> chars) {
-        while (src.length() > 0 && chars.contains(src.charAt(0))) {
+    private void eatLeading(Cursor src, int chars) {
+        while (src.length() > 0 && isChar(src.charAt(0), chars)) {
             src.deleteCharAt(0);
         }
     }
 
-    private void eatTrailing(StringBuilder src, List<Character> chars) {
-        while (src.length() > 0 && chars.contains(src.charAt(src.length() - 1))) {
+    private void eatTrailing(Cursor src, int chars) {
+        while (src.length() > 0 && isChar(src.charAt(src.length() - 1), chars)) {
             src.deleteCharAt(src.length() - 1);
         }
     }
 
+    private static boolean isChar(char c, int chars) {
+        return c < charClasses.length && (charClasses[c] & chars) != 0;
+    }
+
+    private static byte[] charClasses() {
+        byte[] classes = new byte[128];
+
+        for (char c : " \t\r\n:".toCharArray()) {
+            classes[c] |= whiteSpaceChars;
+        }
+
+        for (char c : " \t\r\n\"".toCharArray()) {
+            classes[c] |= whiteSpaceChars2;
+        }
+
+        for (char c : " \t\n\u000B\f\r:".toCharArray()) {
+            classes[c] |= separatorChars;
+        }
+
+        for (char c : "!&|+-*/%()<>=,".toCharArray()) {
+            classes[c] |= mathChars;
+        }
+
+        return classes;
+    }
+
     private int hexify(char c) {
         if (c >= '0' && c <= '9') {
             return c - '0';
@@ -1401,41 +3796,73 @@ public class Asm8 {
     }
 
     private void outputLE(int n, int size) {
-        if (size == 0) {
-            output();
-        } else if (size == 1) {
-            output((byte) n);
-        } else {
-            output((byte) n, (byte) (n >> 8));
+        byte[] bytes = outputBuffer;
+
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (n >> (i * 8));
+        }
+
+        output(bytes, size);
+    }
+
+    private void output(byte b) {
+        outputLE(b, 1);
+    }
+
+    private void output(byte[] bytes, int length) {
+        firstLabel.value = ((int) firstLabel.value) + length;
+
+        if (noOutput) {
+            return;
         }
+
+        startImage();
+        image.write(bytes, 0, length);
+    }
+
+    private void output(ByteBuffer mapped) {
+        firstLabel.value = ((int) firstLabel.value) + mapped.remaining();
+
+        if (noOutput) {
+            return;
+        }
+
+        startImage();
+        image.write(mapped);
     }
 
-    private void output(byte... bytes) {
-        firstLabel.value = ((int) firstLabel.value) + bytes.length;
+    private void outputFill(int val, int size, int count) {
+        firstLabel.value = ((int) firstLabel.value) + count * size;
 
         if (noOutput) {
             return;
         }
 
+        startImage();
+        image.fill(val, size, count);
+    }
+
+    // Only the last pass ends up in the file, so each pass starts over.
+    private void startImage() {
         if (oldPass != pass) {
             oldPass = pass;
-
-            try {
-                outputStream = new BufferedOutputStream(new FileOutputStream(outputFileName, false));
-            } catch (FileNotFoundException e) {
-                throw new Asm8Exception("Can't create output file.");
-            }
+            image.clear();
         }
+    }
 
-        try {
-            outputStream.write(bytes);
+    private void writeImage() {
+        try (FileChannel channel = FileChannel.open(resolve(baseDir, outputFileName).toPath(),
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            image.writeTo(channel);
         } catch (IOException e) {
-            throw new Asm8Exception("Write error.");
+            throw new Asm8Exception("Can't create output file.");
         }
     }
 
     private void throwError(Throwable t, String filename, int line) {
-        throw new RuntimeException(String.format("%s(%s): %s", filename, line, t.getMessage()));
+        throw new RuntimeException(String.format("%s(%s): %s", filename, line, t.getMessage() != null ? t.getMessage() : t), t);
     }
 
     private void throwError(String message, String filename, int line) {
@@ -1446,72 +3873,69 @@ public class Asm8 {
     // Opcodes and Directives
     //------------------------------------------
 
-    @SuppressWarnings("unchecked")
-    private void opcode(Label id, StringBuilder next) {
+    // The operand is evaluated at most once per form (plain, '#' or '('), then checked against each mode.
+    private void opcode(Label id, Cursor next) {
         boolean oldState = needAnotherPass;
-        boolean forceRel = false;
+        OpMap map = (OpMap) id.line;
 
-        Map<OpType, Byte> line = (Map<OpType, Byte>) id.line;
+        for (Operand operand : operands) {
+            operand.evaluated = false;
+        }
 
-        for (Entry<OpType, Byte> entry : line.entrySet()) {
-            OpType type = entry.getKey();
-            byte op = entry.getValue();
+        for (OpType type : map.types) {
             int val = 0;
             needAnotherPass = oldState;
             dependant = 0;
-            StringBuilder s = new StringBuilder(next);
+            CharSequence rest = next;
 
             if (type != OpType.IMP && type != OpType.ACC) {
-                try {
-                    if (!eatChar(s, type.head)) {
+                Operand operand = getOperand(next, type.head, oldState);
+
+                if (!operand.matched) {
+                    continue;
+                }
+
+                needAnotherPass = operand.needAnotherPass;
+                dependant = operand.dependant;
+
+                if (operand.error != null) {
+                    if (dependant == 0) {
                         continue;
                     }
 
-                    val = eval(s, Operator.Precedence.WHOLEEXP);
+                    throw operand.error;
+                }
 
-                    if (type == OpType.REL) {
-                        if (dependant == 0) {
-                            val -= (int) firstLabel.value + 2;
+                val = operand.value;
+                rest = operand.rest;
 
-                            if (val > Byte.MAX_VALUE || val < Byte.MIN_VALUE) {
-                                needAnotherPass = true;
+                if (type == OpType.REL) {
+                    if (dependant == 0) {
+                        val -= (int) firstLabel.value + 2;
 
-                                if (lastChance) {
-                                    forceRel = true;
-                                    throw new Asm8Exception("Branch out of range.");
-                                }
-                            }
-                        }
-                    } else {
-                        if (type.size == 1) {
-                            if (dependant == 0) {
-                                if (val > 255 || val < Byte.MIN_VALUE) {
-                                    throw new OutOfRangeException();
-                                }
-                            } else if (type != OpType.IMM) {
-                                continue;
+                        if (val > Byte.MAX_VALUE || val < Byte.MIN_VALUE) {
+                            needAnotherPass = true;
+
+                            if (lastChance) {
+                                throw new BranchOutOfRangeException();
                             }
-                        } else if ((val < 0 || val > 0xFFFF) && dependant == 0) {
-                            throw new OutOfRangeException();
                         }
                     }
-                } catch (Asm8Exception e) {
-                    if (dependant == 0 && !forceRel) {
+                } else if (type.size == 1) {
+                    if (dependant == 0 ? val > 255 || val < Byte.MIN_VALUE : type != OpType.IMM) {
                         continue;
                     }
-
-                    throw e;
+                } else if ((val < 0 || val > 0xFFFF) && dependant == 0) {
+                    continue;
                 }
             }
 
-            eatLeading(s, whiteSpaceChars);
-
-            if (whiteSpaceRegex.matcher(s).replaceAll("").toUpperCase().startsWith(type.tail)) {
+            if (startsWithTail(rest, type.tail)) {
                 if ((int) firstLabel.value > 0xFFFF) {
-                    throw new Asm8Exception("PC out of range.");
+                    throw new PCOutOfRangeException();
                 }
 
-                output(op);
+                output(map.opcodes[type.ordinal()]);
                 outputLE(val, type.size);
                 next.setLength(0);
 
@@ -1520,11 +3944,61 @@ public class Asm8 {
         }
     }
 
-    private void nothing(Label id, StringBuilder next) {
+    private Operand getOperand(Cursor next, char head, boolean oldState) {
+        Operand operand = operands[head == '#' ? 1 : head == '(' ? 2 : 0];
+
+        if (operand.evaluated) {
+            return operand;
+        }
+
+        Cursor s = operand.rest;
+        s.setLength(0);
+        s.append(next);
+
+        operand.evaluated = true;
+        operand.matched = eatChar(s, head);
+        operand.error = null;
+        needAnotherPass = oldState;
+        dependant = 0;
+
+        if (operand.matched) {
+            try {
+                operand.value = eval(s, Operator.Precedence.WHOLEEXP);
+            } catch (Asm8Exception e) {
+                operand.error = e;
+            }
+        }
+
+        operand.dependant = dependant;
+        operand.needAnotherPass = needAnotherPass;
+
+        return operand;
+    }
+
+    // Same as stripping white space and colons from src and testing whether its upper case starts with tail.
+    private static boolean startsWithTail(CharSequence src, String tail) {
+        int j = 0;
+
+        for (int i = 0; i < src.length() && j < tail.length(); i++) {
+            char c = src.charAt(i);
+
+            if (c == ':' || c == ' ' || (c >= '\t' && c <= '\r')) {
+                continue;
+            }
+
+            if ((c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c) != tail.charAt(j++)) {
+                return false;
+            }
+        }
+
+        return j == tail.length();
+    }
+
+    private void nothing(Label id, Cursor next) {
 
     }
 
-    private void _if(Label id, StringBuilder next) {
+    private void _if(Label id, Cursor next) {
         if (ifLevel > IFNESTS - 1) {
             throw new IfNestLimitException();
         } else {
@@ -1532,6 +4006,7 @@ public class Asm8 {
         }
 
         dependant = 0;
+        steeredByGuess |= guesses != null && !guesses.isEmpty();
 
         int val = eval(next, Operator.Precedence.WHOLEEXP);
 
@@ -1544,9 +4019,10 @@ public class Asm8 {
         }
     }
 
-    private void elseif(Label id, StringBuilder next) {
+    private void elseif(Label id, Cursor next) {
         if (ifLevel != 0) {
             dependant = 0;
+            steeredByGuess |= guesses != null && !guesses.isEmpty();
             int val = eval(next, Operator.Precedence.WHOLEEXP);
 
             if (!ifDone[ifLevel]) {
@@ -1565,7 +4041,7 @@ public class Asm8 {
         }
     }
 
-    private void _else(Label id, StringBuilder next) {
+    private void _else(Label id, Cursor next) {
         if (ifLevel != 0) {
             skipLine[ifLevel] = ifDone[ifLevel] || skipLine[ifLevel - 1];
         } else {
@@ -1573,7 +4049,7 @@ public class Asm8 {
         }
     }
 
-    private void endif(Label id, StringBuilder next) {
+    private void endif(Label id, Cursor next) {
         if (ifLevel != 0) {
             ifLevel--;
         } else {
@@ -1581,7 +4057,7 @@ public class Asm8 {
         }
     }
 
-    private void ifdef(Label id, StringBuilder next) {
+    private void ifdef(Label id, Cursor next) {
         if (ifLevel >= IFNESTS - 1) {
             throw new IfNestLimitException();
         } else {
@@ -1589,11 +4065,12 @@ public class Asm8 {
         }
 
         String s = getLabel(next);
+        assume(s);
         skipLine[ifLevel] = findLabel(s) == null || skipLine[ifLevel - 1];
         ifDone[ifLevel] = !skipLine[ifLevel];
     }
 
-    private void ifndef(Label id, StringBuilder next) {
+    private void ifndef(Label id, Cursor next) {
         if (ifLevel >= IFNESTS - 1) {
             throw new IfNestLimitException();
         } else {
@@ -1601,11 +4078,19 @@ public class Asm8 {
         }
 
         String s = getLabel(next);
+        assume(s);
         skipLine[ifLevel] = findLabel(s) != null || skipLine[ifLevel - 1];
         ifDone[ifLevel] = !skipLine[ifLevel];
     }
 
-    private void equal(Label id, StringBuilder next) {
+    // A snapshot only holds while the names its file tested undefined stay undefined.
+    private void assume(String name) {
+        if (assumed != null && findLabel(name) == null) {
+            assumed.add(name);
+        }
+    }
+
+    private void equal(Label id, Cursor next) {
         if (labelHere == null) {
             throw new NeedNameException();
         }
@@ -1617,11 +4102,11 @@ public class Asm8 {
         labelHere.line = dependant == 0 ? Boolean.TRUE : null;
     }
 
-    private void equ(Label id, StringBuilder next) {
+    private void equ(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void org(Label id, StringBuilder next) {
+    private void org(Label id, Cursor next) {
         if ((int) firstLabel.value < 0) {
             base(id, next);
         } else {
@@ -1629,7 +4114,7 @@ public class Asm8 {
         }
     }
 
-    private void base(Label id, StringBuilder next) {
+    private void base(Label id, Cursor next) {
         dependant = 0;
         int val = eval(next, Operator.Precedence.WHOLEEXP);
 
@@ -1640,7 +4125,7 @@ public class Asm8 {
         }
     }
 
-    private void pad(Label id, StringBuilder next) {
+    private void pad(Label id, Cursor next) {
         if ((int) firstLabel.value < 0) {
             throw new UndefinedPCException();
         }
@@ -1650,16 +4135,165 @@ public class Asm8 {
         filler(count, next);
     }
 
-    private void include(Label id, StringBuilder next) {
+    private void include(Label id, Cursor next) {
         eatLeading(next, whiteSpaceChars2);
         eatTrailing(next, whiteSpaceChars2);
 
-        processFile(new File(next.toString()));
+        File file = resolve(baseDir, next.toString());
+        Snapshot snapshot = snapshot(file);
+
+        if (snapshot == null || !loadSnapshot(snapshot)) {
+            processFile(file);
+        }
 
         next.setLength(0);
     }
 
-    private void incbin(Label id, StringBuilder next) {
+    private void precompile(String fileName, PrintStream err) {
+        Asm8 header = withOptions();
+        header.verbose = false;
+        header.cache = false;
+        header.seed = false;
+        header.inputFileName = fileName;
+        header.dependencies = new LinkedHashMap<>();
+        header.assumed = new LinkedHashSet<>();
+
+        try {
+            header.runPasses();
+        } catch (RuntimeException e) {
+            err.println(e.getMessage());
+            return;
+        }
+
+        List<Label> labels = header.symbols.known();
+        String problem = header.image.size() > 0 ? "it outputs code or data"
+                         : (int) header.firstLabel.value != NOORIGIN ? "it sets the program counter"
+                         : header.readsProgramCounter ? "it reads the program counter"
+                         : labels.size() != header.labelCount || labels.stream().anyMatch(label -> label.name.charAt(0) == '+')
+                           ? "it defines labels without a fixed value"
+                           : null;
+
+        if (problem != null) {
+            err.printf("Can't precompile %s: %s.\n", fileName, problem);
+            return;
+        }
+
+        String snapshotFileName = fileName + ".snap";
+
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(resolve(baseDir, snapshotFileName).toPath())))) {
+            data.writeUTF("asm8 " + VERSION);
+            data.writeInt(header.dependencies.size());
+
+            for (Map.Entry<Path, Long> file : header.dependencies.entrySet()) {
+                data.writeUTF(file.getKey().toString());
+                data.writeUTF(hash(file.getKey()));
+            }
+
+            data.writeInt(header.assumed.size());
+
+            for (String name : header.assumed) {
+                data.writeUTF(name);
+            }
+
+            data.writeInt(labels.size());
+
+            for (Label label : labels) {
+                data.writeUTF(label.name);
+                data.writeBoolean(label.type == Label.Type.VALUE);
+                data.writeInt((int) label.value);
+            }
+        } catch (IOException e) {
+            err.printf("Can't create %s.\n", snapshotFileName);
+            return;
+        }
+
+        if (verbose) {
+            out.printf("%s written (%d labels).\n", snapshotFileName, labels.size());
+        }
+    }
+
+    private Snapshot snapshot(File file) {
+        if (nestedIncludes == 0 || listFileName != null || !virtualFiles.isEmpty()) {
+            return null;
+        }
+
+        String path = file.getPath() + ".snap";
+
+        if (snapshots.containsKey(path)) {
+            return snapshots.get(path);
+        }
+
+        Snapshot snapshot = null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))))) {
+            snapshot = readSnapshot(in);
+        } catch (IOException ignored) {//no snapshot, or an unreadable one, means the file itself is assembled
+        }
+
+        snapshots.put(path, snapshot);
+
+        return snapshot;
+    }
+
+    private Snapshot readSnapshot(DataInputStream in) throws IOException {
+        if (!in.readUTF().equals("asm8 " + VERSION)) {
+            return null;
+        }
+
+        Snapshot snapshot = new Snapshot();
+
+        for (int files = in.readInt(); files > 0; files--) {
+            Path file = Paths.get(in.readUTF());
+            long modified = file.toFile().lastModified();
+
+            if (!in.readUTF().equals(hash(file))) {
+                return null;
+            }
+
+            if (dependencies != null) {
+                dependencies.putIfAbsent(file, modified);
+            }
+        }
+
+        for (int names = in.readInt(); names > 0; names--) {
+            snapshot.assumed.add(in.readUTF());
+        }
+
+        for (int labels = in.readInt(); labels > 0; labels--) {
+            String name = in.readUTF();
+            Label.Type type = in.readBoolean() ? Label.Type.VALUE : Label.Type.LABEL;
+            snapshot.labels.add(new Label(name, in.readInt(), Boolean.TRUE, type));
+        }
+
+        return snapshot;
+    }
+
+    private boolean loadSnapshot(Snapshot snapshot) {
+        for (String name : snapshot.assumed) {
+            if (findLabel(name) != null) {
+                return false;
+            }
+        }
+
+        Object pc = firstLabel.value;
+
+        for (Label label : snapshot.labels) {
+            firstLabel.value = label.value;
+            addLabel(label.name, false);
+
+            if (label.type == Label.Type.VALUE) {
+                labelHere.type = Label.Type.VALUE;
+                labelHere.value = label.value;
+                labelHere.line = Boolean.TRUE;
+            }
+        }
+
+        firstLabel.value = pc;
+
+        return true;
+    }
+
+    private void incbin(Label id, Cursor next) {
         eatLeading(next, whiteSpaceChars);
         String filename;
 
@@ -1673,52 +4307,78 @@ public class Asm8 {
             filename = next.substring(1, end);
             next.delete(0, end + 1);
         } else {
-            StringBuilder tmp = new StringBuilder();
+            Cursor tmp = new Cursor();
             getWord(next, tmp, false);
             filename = tmp.toString();
         }
 
-        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
-            long fileSize = file.length();
-            int seekPos = eatChar(next, ',')
+        ByteBuffer file = mapBinary(filename);
+        long fileSize = file.capacity();
+        int seekPos = eatChar(next, ',')
+                      ? eval(next, Operator.Precedence.WHOLEEXP)
+                      : 0;
+        if (dependant == 0 && (seekPos < 0 || seekPos > fileSize)) {
+            throw new SeeKOutOfRangeException();
+        }
+
+        int bytesToRead = eatChar(next, ',')
                           ? eval(next, Operator.Precedence.WHOLEEXP)
-                          : 0;
-            if (dependant == 0 && (seekPos < 0 || seekPos > fileSize)) {
-                throw new SeeKOutOfRangeException();
-            }
+                          : (int) (fileSize - seekPos);
+
+        if (dependant == 0 && (bytesToRead < 0 || bytesToRead > fileSize - seekPos)) {
+            throw new BadIncbinSizeException();
+        }
 
-            int bytesToRead = eatChar(next, ',')
-                              ? eval(next, Operator.Precedence.WHOLEEXP)
-                              : (int) (fileSize - seekPos);
+        if (seekPos < 0 || seekPos > fileSize || bytesToRead < 0 || bytesToRead > fileSize - seekPos) {
+            outputFill(0, 1, Math.max(bytesToRead, 0));//still unknown, only the size matters for now
+        } else {
+            output(file.duplicate().position(seekPos).limit(seekPos + bytesToRead).slice());
+        }
+    }
+
+    private ByteBuffer mapBinary(String filename) {
+        byte[] virtual = virtualFiles.get(virtualPath(filename));
+
+        if (virtual != null) {
+            return ByteBuffer.wrap(virtual);
+        }
+
+        try {
+            File file = resolve(baseDir, filename).getCanonicalFile();
+            long modified = file.lastModified();
+            MappedFile mapped = binaries.get(file.getPath());
 
-            if (dependant == 0 && (bytesToRead < 0 || bytesToRead > fileSize - seekPos)) {
-                throw new BadIncbinSizeException();
+            if (dependencies != null) {
+                dependencies.putIfAbsent(file.toPath(), modified);
             }
 
-            byte[] bytes = new byte[bytesToRead];
+            if (mapped == null || mapped.modified != modified) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    if (channel.size() > Integer.MAX_VALUE) {//more than a buffer can map
+                        throw new Asm8Exception("INCBIN file too large.");
+                    }
 
-            if (seekPos > 0) {
-                file.seek(seekPos);
-                file.read(bytes);
-            } else {
-                file.readFully(bytes);
+                    mapped = new MappedFile(modified, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+
+                binaries.put(file.getPath(), mapped);
             }
 
-            output(bytes);
+            return mapped.contents;
         } catch (IOException e) {
             throw new CantOpenException();
         }
     }
 
-    private void hex(Label id, StringBuilder next) {
+    private void hex(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void dw(Label id, StringBuilder next) {
+    private void dw(Label id, Cursor next) {
         do {
-            int val = eval(next, Operator.Precedence.WHOLEEXP);
+            int val = evalData(next);
 
-            if (val > 65535 || val < -65536) {
+            if ((val > 65535 || val < -65536) && !isLayoutOnly()) {
                 throw new OutOfRangeException();
             }
 
@@ -1727,7 +4387,7 @@ public class Asm8 {
         while (eatChar(next, ','));
     }
 
-    private void db(Label id, StringBuilder next) {
+    private void db(Label id, Cursor next) {
         do {
             eatLeading(next, whiteSpaceChars);
             char quote = next.length() > 0 ? next.charAt(0) : 0;
@@ -1745,9 +4405,9 @@ public class Asm8 {
 
                 next.deleteCharAt(0);
             } else {
-                int val = eval(next, Operator.Precedence.WHOLEEXP);
+                int val = evalData(next);
 
-                if (val > 255 || val < Byte.MIN_VALUE) {
+                if ((val > 255 || val < Byte.MIN_VALUE) && !isLayoutOnly()) {
                     throw new OutOfRangeException();
                 }
 
@@ -1757,37 +4417,48 @@ public class Asm8 {
         while (eatChar(next, ','));
     }
 
-    private void dsw(Label id, StringBuilder next) {
-        throw new Asm8Exception("Not implemented yet.");
+    private void dsw(Label id, Cursor next) {
+        dependant = 0;
+        int count = eval(next, Operator.Precedence.WHOLEEXP);
+        filler(count, 2, next);
     }
 
-    private void dsb(Label id, StringBuilder next) {
+    private void dsb(Label id, Cursor next) {
         dependant = 0;
         int count = eval(next, Operator.Precedence.WHOLEEXP);
         filler(count, next);
     }
 
-    private void align(Label id, StringBuilder next) {
-        throw new Asm8Exception("Not implemented yet.");
+    private void align(Label id, Cursor next) {
+        dependant = 0;
+        int count = eval(next, Operator.Precedence.WHOLEEXP);
+
+        if (count > 0 && Integer.remainderUnsigned((int) firstLabel.value, count) != 0) {
+            count -= Integer.remainderUnsigned((int) firstLabel.value, count);
+        } else {
+            count = 0;
+        }
+
+        filler(count, next);
     }
 
-    private void macro(Label id, StringBuilder next) {
+    private void macro(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void rept(Label id, StringBuilder next) {
+    private void rept(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void endm(Label id, StringBuilder next) {
+    private void endm(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void endr(Label id, StringBuilder next) {
+    private void endr(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void _enum(Label id, StringBuilder next) {
+    private void _enum(Label id, Cursor next) {
         dependant = 0;
         int val = eval(next, Operator.Precedence.WHOLEEXP);
 
@@ -1799,7 +4470,7 @@ public class Asm8 {
         noOutput = true;
     }
 
-    private void ende(Label id, StringBuilder next) {
+    private void ende(Label id, Cursor next) {
         if (noOutput) {
             firstLabel.value = enumSaveAddr;
             noOutput = false;
@@ -1808,23 +4479,51 @@ public class Asm8 {
         }
     }
 
-    private void fillval(Label id, StringBuilder next) {
+    private void fillval(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void dl(Label id, StringBuilder next) {
-        throw new Asm8Exception("Not implemented yet.");
+    private void dl(Label id, Cursor next) {
+        do {
+            outputLE(evalData(next), 1);
+        }
+        while (eatChar(next, ','));
     }
 
-    private void dh(Label id, StringBuilder next) {
-        throw new Asm8Exception("Not implemented yet.");
+    private void dh(Label id, Cursor next) {
+        do {
+            outputLE(evalData(next) >> 8, 1);
+        }
+        while (eatChar(next, ','));
+    }
+
+    // Another pass is already due, so only the size of what's output matters.
+    private boolean isLayoutOnly() {
+        return needAnotherPass && !lastChance;
+    }
+
+    private int evalData(Cursor next) {
+        if (isLayoutOnly()) {
+            Compiled compiled = getCompiled(next);
+
+            if (compiled.expr != null) {
+                next.delete(0, compiled.end);
+                return 0;
+            }
+        }
+
+        return eval(next, Operator.Precedence.WHOLEEXP);
     }
 
-    private void makeError(Label id, StringBuilder next) {
+    private void makeError(Label id, Cursor next) {
         throw new Asm8Exception("Not implemented yet.");
     }
 
-    private void filler(int count, StringBuilder next) {
+    private void filler(int count, Cursor next) {
+        filler(count, 1, next);
+    }
+
+    private void filler(int count, int size, Cursor next) {
         if (dependant != 0 || (count < 0 && needAnotherPass)) {
             count = 0;
         }
@@ -1833,19 +4532,87 @@ public class Asm8 {
                   ? eval(next, Operator.Precedence.WHOLEEXP)
                   : defaultFiller;
 
-        if (dependant == 0 && (val > 255 || val < -128 || count < 0 || count > 0x100000)) {
+        if (dependant == 0 && (val > (size == 1 ? 255 : 65535) || val < (size == 1 ? -128 : -32768) || count < 0 || count > 0x100000)) {
             throw new OutOfRangeException();
         }
 
-        while (count-- > 0) {
-            outputLE(val, 1);
+        if (count > 0) {
+            outputFill(val, size, count);
+        }
+    }
+
+    public static class AssemblyRequest {
+
+        public AssemblyRequest(String fileName) {
+            this.fileName = fileName;
+            this.source = null;
+        }
+
+        public AssemblyRequest(Reader source) {
+            this.fileName = STDIN;
+            this.source = source;
+        }
+
+        private final String fileName;
+        private final Reader source;
+        private final Map<String, byte[]> files = new HashMap<>();
+        private final List<String> defines = new ArrayList<>();
+
+        public AssemblyRequest addFile(String name, String text) {
+            return addFile(name, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public AssemblyRequest addFile(String name, byte[] contents) {
+            files.put(virtualPath(name), contents);
+            return this;
+        }
+
+        public AssemblyRequest addFile(String name, Reader reader) throws IOException {
+            StringWriter text = new StringWriter();
+            reader.transferTo(text);
+
+            return addFile(name, text.toString());
+        }
+
+        public AssemblyRequest define(String name) {
+            defines.add(name);
+            return this;
+        }
+    }
+
+    public static class AssemblyResult {
+
+        public AssemblyResult(byte[] rom, Map<String, Integer> symbols, List<String> diagnostics) {
+            this.rom = rom;
+            this.symbols = symbols;
+            this.diagnostics = diagnostics;
+        }
+
+        private final byte[] rom;
+        private final Map<String, Integer> symbols;
+        private final List<String> diagnostics;
+
+        public byte[] getRom() {
+            return rom;
+        }
+
+        public Map<String, Integer> getSymbols() {
+            return symbols;
+        }
+
+        public List<String> getDiagnostics() {
+            return diagnostics;
+        }
+
+        public boolean isSuccess() {
+            return rom != null;
         }
     }
 
     public static class Asm8Exception extends RuntimeException {
 
         public Asm8Exception(String message) {
-            super(message);
+            super(message, null, false, false);
         }
     }
 
@@ -1856,6 +4623,20 @@ public class Asm8 {
         }
     }
 
+    public static class BranchOutOfRangeException extends Asm8Exception {
+
+        public BranchOutOfRangeException() {
+            super("Branch out of range.");
+        }
+    }
+
+    public static class PCOutOfRangeException extends Asm8Exception {
+
+        public PCOutOfRangeException() {
+            super("PC out of range.");
+        }
+    }
+
     public static class SeeKOutOfRangeException extends Asm8Exception {
 
         public SeeKOutOfRangeException() {
@@ -2017,13 +4798,15 @@ public class Asm8 {
         }
     }
 
-    private static Map<OpType, Byte> opMap(Object... objects) {
-        Map<OpType, Byte> map = new LinkedHashMap<>();
+    private static OpMap opMap(Object... objects) {
+        OpType[] types = new OpType[objects.length / 2];
+        byte[] opcodes = new byte[OpType.values().length];
 
         for (int i = 0; i < objects.length; i += 2) {
-            map.put((OpType) objects[i + 1], ((Integer) objects[i]).byteValue());
+            types[i / 2] = (OpType) objects[i + 1];
+            opcodes[types[i / 2].ordinal()] = ((Integer) objects[i]).byteValue();
         }
 
-        return map;
+        return new OpMap(types, opcodes);
     }
 }